@@ -0,0 +1,119 @@
+package dc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bayonet.smc.ParticlePopulation;
+
+
+
+/**
+ * One DC recursion step at an internal node of the Markov chain example of Doc, whose children 
+ * are leaves.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class DCRecursionBenchmark
+{
+  @Param({"1000", "100000"})
+  public int nParticles;
+  
+  @Param({"2", "10"})
+  public int fanOut;
+  
+  @Param({"1", "4"})
+  public int nThreads;
+  
+  @Param({"false", "true"})
+  public boolean counterBasedRandom;
+  
+  /**
+   * Whether the proposal implements DCBatchProposal, or is called once per particle.
+   */
+  @Param({"false", "true"})
+  public boolean batchProposal;
+  
+  private DCOptions options;
+  private DCOptions proposeOnlyOptions;
+  private ForkJoinPool pool;
+  private List<ParticlePopulation<Integer>> childrenPopulations;
+  private DCProposal<Integer> proposal;
+  
+  @Setup
+  public void setup()
+  {
+    options = options(nParticles, nThreads, counterBasedRandom);
+    proposeOnlyOptions = options(nParticles, nThreads, counterBasedRandom);
+    proposeOnlyOptions.relativeEssThreshold = 0.0; // never resample
+    proposal = batchProposal ? 
+        Doc.markovChainNaiveBatchProposal(Doc.transition, Doc.prior) : 
+        Doc.markovChainNaiveProposal(Doc.transition, Doc.prior);
+    pool = nThreads > 1 ? new ForkJoinPool(nThreads) : null;
+    childrenPopulations = new ArrayList<>();
+    for (int c = 0; c < fanOut; c++)
+      childrenPopulations.add(DCRecursion.dcRecurse(
+          random(c), options, Collections.emptyList(), 
+          random -> (rand, children) -> Pair.of(Math.log(Doc.prior.get(0, 0)), 0), 
+          Collections.emptyList(), pool));
+  }
+  
+  @TearDown
+  public void tearDown()
+  {
+    if (pool != null)
+      pool.shutdown();
+  }
+  
+  @Benchmark
+  public ParticlePopulation<Integer> dcRecurse()
+  {
+    return DCRecursion.dcRecurse(random(1), options, childrenPopulations, random -> proposal, Collections.emptyList(), pool);
+  }
+  
+  @Benchmark
+  public ParticlePopulation<Integer> dcPropose()
+  {
+    return DCRecursion.dcRecurse(random(1), proposeOnlyOptions, childrenPopulations, random -> proposal, Collections.emptyList(), pool);
+  }
+  
+  private Random random(long seed)
+  {
+    return counterBasedRandom ? new CounterRandom(seed) : new Random(seed);
+  }
+  
+  /**
+   * Proposals in blocks (or with one stream per particle), so that the output does not depend on nThreads.
+   */
+  static DCOptions options(int nParticles, int nThreads, boolean counterBasedRandom)
+  {
+    final DCOptions result = new DCOptions();
+    result.nParticles = nParticles;
+    result.counterBasedRandom = counterBasedRandom;
+    if (!counterBasedRandom)
+      result.proposalBlockSize = Math.max(1, nParticles / 64);
+    result.nProposalThreads = nThreads;
+    return result;
+  }
+}
@@ -0,0 +1,98 @@
+package dc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import prototype.smc.SMCUtils;
+import bayonet.smc.ParticlePopulation;
+import bayonet.smc.ResamplingScheme;
+import briefj.collections.Counter;
+
+
+
+/**
+ * Multinomial resampling of a population with random weights, with the implementations used by 
+ * DCRecursion, bayonet and the prototype.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ResamplingBenchmark
+{
+  @Param({"1000", "100000", "1000000"})
+  public int nParticles;
+  
+  @Param({"1", "4"})
+  public int nThreads;
+  
+  private ParticlePopulation<Integer> population;
+  private double [] weights;
+  private ForkJoinPool pool;
+  
+  @Setup
+  public void setup()
+  {
+    final Random random = new Random(1);
+    final double [] logWeights = new double[nParticles];
+    final List<Integer> particles = new ArrayList<>(nParticles);
+    for (int i = 0; i < nParticles; i++)
+    {
+      logWeights[i] = random.nextGaussian();
+      particles.add(i);
+    }
+    population = ParticlePopulation.buildDestructivelyFromLogWeights(logWeights, particles, 0.0);
+    weights = new double[nParticles];
+    for (int i = 0; i < nParticles; i++)
+      weights[i] = population.getNormalizedWeight(i);
+    pool = new ForkJoinPool(nThreads);
+  }
+  
+  @TearDown
+  public void tearDown()
+  {
+    pool.shutdown();
+  }
+  
+  @Benchmark
+  public ParticlePopulation<Integer> dcResample()
+  {
+    return Resampling.resample(new Random(1), ResamplingScheme.MULTINOMIAL, population, nParticles);
+  }
+  
+  @Benchmark
+  public ParticlePopulation<Integer> dcParallelResample()
+  {
+    return Resampling.resample(new Random(1), ParallelResamplingScheme.MULTINOMIAL, population, nParticles, pool);
+  }
+  
+  @Benchmark
+  public ParticlePopulation<Integer> particlePopulationResample()
+  {
+    return population.resample(new Random(1), ResamplingScheme.MULTINOMIAL);
+  }
+  
+  @Benchmark
+  public Counter<Integer> multinomialSampling()
+  {
+    return SMCUtils.multinomialSampling(new Random(1), weights, nParticles);
+  }
+}
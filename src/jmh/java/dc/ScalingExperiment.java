@@ -0,0 +1,423 @@
+package dc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.lang3.SerializationUtils;
+
+import prototype.Node;
+import prototype.adaptor.MultiLevelProposalFactory;
+import bayonet.graphs.DirectedTree;
+import briefj.OutputManager;
+import briefj.opt.Option;
+import briefj.run.Mains;
+import briefj.run.Results;
+
+
+
+/**
+ * Strong and weak scaling of DistributedDC on one machine. Each configuration is run by nMembers
+ * JVMs started by this program and connected over the loopback interface (see DCOptions.tcpIpMembers),
+ * since runs in one JVM share a single Hazelcast member.
+ *
+ * For each configuration, writes to the file 'scaling' of the results folder the wall-clock time from the
+ * first member starting the run, including the formation of the cluster, to the last member done (best of 
+ * nRepeats), the speedup and efficiency relative to the
+ * configuration of the same problem with the fewest threads, the bytes of populations moved and the time
+ * spent waiting on the cluster (see DCMetrics). The file 'best' gives, for each problem and number of
+ * members, the maximumDistributionDepth and nThreadsPerNode with the smallest time.
+ *
+ * With weakScaling, the number of particles of each configuration is multiplied by its total number of
+ * threads, so that ideally the time stays constant.
+ */
+public class ScalingExperiment implements Runnable
+{
+  @Option(gloss = "MARKOV_CHAIN uses the example of Doc on perfect binary trees, MULTI_LEVEL the multi-level model "
+      + "on synthetic data with fanOut children per internal node.")
+  public Model model = Model.MARKOV_CHAIN;
+
+  @Option(gloss = "Depths of the trees")
+  public ArrayList<Integer> depths = new ArrayList<>(Arrays.asList(6, 8));
+
+  @Option(gloss = "See model")
+  public int fanOut = 4;
+
+  @Option
+  public ArrayList<Integer> nParticles = new ArrayList<>(Arrays.asList(1_000, 10_000));
+
+  @Option(gloss = "Numbers of cluster members, each a separate JVM")
+  public ArrayList<Integer> nMembers = new ArrayList<>(Arrays.asList(1, 2, 4));
+
+  @Option
+  public ArrayList<Integer> nThreadsPerNode = new ArrayList<>(Arrays.asList(1, 2));
+
+  @Option(gloss = "See DCOptions.maximumDistributionDepth")
+  public ArrayList<Integer> maximumDistributionDepths = new ArrayList<>(Arrays.asList(Integer.MAX_VALUE));
+
+  @Option(gloss = "Multiply the number of particles by the total number of threads of each configuration")
+  public boolean weakScaling = false;
+
+  @Option(gloss = "See DCOptions.compressPopulations. When set, the bytes moved are counted before compression.")
+  public boolean compressPopulations = false;
+
+  @Option(gloss = "Number of times each configuration is run, keeping the fastest")
+  public int nRepeats = 1;
+
+  @Option(gloss = "Space separated options of the JVMs of the members")
+  public String memberJvmOptions = "-Xmx2g";
+
+  public static enum Model { MARKOV_CHAIN, MULTI_LEVEL }
+
+  @Override
+  public void run()
+  {
+    final List<Configuration> configurations = new ArrayList<>();
+    final List<MemberResult> results = new ArrayList<>();
+    int nConfigurations = 0;
+    for (int depth : depths)
+    {
+      final File dataFile = model == Model.MULTI_LEVEL ? writeMultiLevelData(depth) : null;
+      for (int n : nParticles)
+        for (int maximumDistributionDepth : maximumDistributionDepths)
+          for (int members : nMembers)
+            for (int threads : nThreadsPerNode)
+            {
+              final Configuration configuration = new Configuration(model, depth, dataFile,
+                  weakScaling ? n * members * threads : n, n, members, threads, maximumDistributionDepth,
+                  compressPopulations, ++nConfigurations);
+              MemberResult best = null;
+              for (int repeat = 0; repeat < nRepeats; repeat++)
+              {
+                final MemberResult result = run(configuration, repeat);
+                if (best == null || result.wallMillis() < best.wallMillis())
+                  best = result;
+              }
+              configurations.add(configuration);
+              results.add(best);
+            }
+    }
+    report(configurations, results);
+  }
+
+  private void report(List<Configuration> configurations, List<MemberResult> results)
+  {
+    final OutputManager output = new OutputManager();
+    output.setOutputFolder(Results.getResultFolder());
+    final Map<List<Object>, Integer> bestIndices = new LinkedHashMap<>();
+    for (int i = 0; i < configurations.size(); i++)
+    {
+      final Configuration configuration = configurations.get(i);
+      final MemberResult result = results.get(i);
+      final int baseline = baseline(configurations, results, configuration);
+      final Configuration baselineConfiguration = configurations.get(baseline);
+      final double threadsRatio = ((double) configuration.nThreads()) / baselineConfiguration.nThreads();
+      final double timeRatio = ((double) results.get(baseline).wallMillis()) / result.wallMillis();
+      final double speedup = weakScaling ? timeRatio * threadsRatio : timeRatio;
+      final DCMetrics.Snapshot metrics = result.metrics;
+      output.printWrite("scaling",
+          "model", configuration.model,
+          "depth", configuration.depth,
+          "nNodes", metrics.nNodes,
+          "nParticles", configuration.nParticles,
+          "nMembers", configuration.nMembers,
+          "nThreadsPerNode", configuration.nThreadsPerNode,
+          "maximumDistributionDepth", configuration.maximumDistributionDepth,
+          "wallMillis", result.wallMillis(),
+          "speedup", speedup,
+          "efficiency", speedup / threadsRatio,
+          "bytesMoved", metrics.nSerializedBytes,
+          "particlesPerSecond", 1000.0 * metrics.nParticlesProposed / result.wallMillis(),
+          "meanTaskWaitMillis", metrics.taskWaitMillis.mean(),
+          "fetchMillis", total(metrics.fetchMicros),
+          "storeMillis", total(metrics.storeMicros),
+          "serializeMillis", total(metrics.serializeMicros),
+          "decrementMillis", total(metrics.decrementMicros));
+      final List<Object> key = Arrays.asList(configuration.depth, configuration.baseNParticles, configuration.nMembers);
+      final Integer best = bestIndices.get(key);
+      if (best == null || result.wallMillis() < results.get(best).wallMillis())
+        bestIndices.put(key, i);
+    }
+    for (int i : bestIndices.values())
+    {
+      final Configuration configuration = configurations.get(i);
+      output.printWrite("best",
+          "model", configuration.model,
+          "depth", configuration.depth,
+          "nParticles", configuration.nParticles,
+          "nMembers", configuration.nMembers,
+          "nThreadsPerNode", configuration.nThreadsPerNode,
+          "maximumDistributionDepth", configuration.maximumDistributionDepth,
+          "wallMillis", results.get(i).wallMillis());
+    }
+    output.close();
+  }
+
+  /**
+   * @return The fastest configuration of the same problem with the fewest threads.
+   */
+  private static int baseline(List<Configuration> configurations, List<MemberResult> results, Configuration configuration)
+  {
+    int result = -1;
+    for (int i = 0; i < configurations.size(); i++)
+    {
+      final Configuration other = configurations.get(i);
+      if (other.depth != configuration.depth || other.baseNParticles != configuration.baseNParticles)
+        continue;
+      if (result == -1 ||
+          other.nThreads() < configurations.get(result).nThreads() ||
+          (other.nThreads() == configurations.get(result).nThreads() && results.get(i).wallMillis() < results.get(result).wallMillis()))
+        result = i;
+    }
+    return result;
+  }
+
+  private static double total(DCMetrics.Histogram histogram)
+  {
+    return histogram.mean() * histogram.count() / 1000.0;
+  }
+
+  /**
+   * Starts the members of the configuration, waits for them to complete, and combines their results.
+   */
+  private MemberResult run(Configuration configuration, int repeat)
+  {
+    final File directory = Results.getFileInResultFolder("members/configuration-" + configuration.clusterSubGroup + "-" + repeat);
+    directory.mkdirs();
+    final File configurationFile = new File(directory, "configuration");
+    try
+    {
+      Files.write(configurationFile.toPath(), SerializationUtils.serialize(configuration));
+      final List<Process> processes = new ArrayList<>();
+      for (int index = 1; index <= configuration.nMembers; index++)
+      {
+        final List<String> command = new ArrayList<>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        for (String option : memberJvmOptions.trim().split("\\s+"))
+          if (!option.isEmpty())
+            command.add(option);
+        command.addAll(Arrays.asList(
+            "-Dhazelcast.local.localAddress=127.0.0.1",
+            "-cp", System.getProperty("java.class.path"),
+            MemberMain.class.getName(),
+            configurationFile.getPath(),
+            "" + index));
+        processes.add(new ProcessBuilder(command)
+          .directory(directory)
+          .redirectErrorStream(true)
+          .redirectOutput(new File(directory, "member-" + index + ".log"))
+          .start());
+      }
+      final List<MemberResult> memberResults = new ArrayList<>();
+      for (int index = 1; index <= configuration.nMembers; index++)
+      {
+        if (processes.get(index - 1).waitFor() != 0)
+          throw new RuntimeException("Member " + index + " failed, see " + new File(directory, "member-" + index + ".log"));
+        memberResults.add(SerializationUtils.deserialize(Files.readAllBytes(new File(directory, "result-" + index).toPath())));
+      }
+      return MemberResult.combine(memberResults);
+    }
+    catch (IOException | InterruptedException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Binomial observations at the leaves of a tree with fanOut children per internal node, in the format of
+   * MultiLevelDataset.
+   */
+  private File writeMultiLevelData(int depth)
+  {
+    final File result = Results.getFileInResultFolder("data/multiLevel-depth" + depth + "-fanOut" + fanOut + ".csv");
+    result.getParentFile().mkdirs();
+    final Random random = new Random(depth);
+    try (PrintWriter out = new PrintWriter(result))
+    {
+      writeMultiLevelData(out, random, "root", depth);
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(e);
+    }
+    return result;
+  }
+
+  private void writeMultiLevelData(PrintWriter out, Random random, String path, int remainingDepth)
+  {
+    if (remainingDepth == 0)
+    {
+      final int nTrials = 10 + random.nextInt(91);
+      final double probability = random.nextDouble();
+      int nSuccesses = 0;
+      for (int trial = 0; trial < nTrials; trial++)
+        if (random.nextDouble() < probability)
+          nSuccesses++;
+      out.println(path + "," + nTrials + "," + nSuccesses);
+      return;
+    }
+    for (int child = 0; child < fanOut; child++)
+      writeMultiLevelData(out, random, path + "," + child, remainingDepth - 1);
+  }
+
+  public static void main(String [] args)
+  {
+    Mains.instrumentedRun(args, new ScalingExperiment());
+  }
+
+  private static final class Configuration implements Serializable
+  {
+    private static final long serialVersionUID = 1L;
+    private final Model model;
+    private final int depth;
+    private final File dataFile; // MULTI_LEVEL only
+    private final int nParticles;
+    private final int baseNParticles; // the nParticles option, before scaling with the number of threads
+    private final int nMembers;
+    private final int nThreadsPerNode;
+    private final int maximumDistributionDepth;
+    private final boolean compressPopulations;
+    private final int clusterSubGroup; // so that the members of different configurations do not cooperate
+
+    Configuration(Model model, int depth, File dataFile, int nParticles, int baseNParticles, int nMembers,
+        int nThreadsPerNode, int maximumDistributionDepth, boolean compressPopulations, int clusterSubGroup)
+    {
+      this.model = model;
+      this.depth = depth;
+      this.dataFile = dataFile;
+      this.nParticles = nParticles;
+      this.baseNParticles = baseNParticles;
+      this.nMembers = nMembers;
+      this.nThreadsPerNode = nThreadsPerNode;
+      this.maximumDistributionDepth = maximumDistributionDepth;
+      this.compressPopulations = compressPopulations;
+      this.clusterSubGroup = clusterSubGroup;
+    }
+
+    int nThreads()
+    {
+      return nMembers * nThreadsPerNode;
+    }
+
+    DCOptions options(int indexInCluster)
+    {
+      final DCOptions result = new DCOptions();
+      result.nParticles = nParticles;
+      result.nThreadsPerNode = nThreadsPerNode;
+      result.maximumDistributionDepth = maximumDistributionDepth;
+      result.compressPopulations = compressPopulations;
+      result.clusterSubGroup = clusterSubGroup;
+      result.minimumNumberOfClusterMembersToStart = nMembers;
+      result.metricsIntervalSeconds = 0;
+      result.indexInCluster = indexInCluster;
+      final List<String> members = new ArrayList<>();
+      for (int i = 0; i < nMembers; i++)
+        members.add("127.0.0.1:" + (5701 + i));
+      result.tcpIpMembers = String.join(",", members);
+      result.port = 5701 + indexInCluster - 1; // otherwise a member could take the next port if this one is busy
+      return result;
+    }
+  }
+
+  private static final class MemberResult implements Serializable
+  {
+    private static final long serialVersionUID = 1L;
+    private final long startMillis; // when the member started the run, before the cluster is formed
+    private final long endMillis; // when the root population was available
+    private final DCMetrics.Snapshot metrics;
+
+    MemberResult(long startMillis, long endMillis, DCMetrics.Snapshot metrics)
+    {
+      this.startMillis = startMillis;
+      this.endMillis = endMillis;
+      this.metrics = metrics;
+    }
+
+    long wallMillis()
+    {
+      return endMillis - startMillis;
+    }
+
+    static MemberResult combine(List<MemberResult> results)
+    {
+      long startMillis = Long.MAX_VALUE, endMillis = Long.MIN_VALUE;
+      final List<DCMetrics.Snapshot> metrics = new ArrayList<>();
+      for (MemberResult result : results)
+      {
+        startMillis = Math.min(startMillis, result.startMillis);
+        endMillis = Math.max(endMillis, result.endMillis);
+        metrics.add(result.metrics);
+      }
+      return new MemberResult(startMillis, endMillis, DCMetrics.Snapshot.sum(metrics));
+    }
+  }
+
+  /**
+   * One member of the cluster running a configuration, started by ScalingExperiment with the configuration
+   * file and the index of the member, writing its MemberResult next to the configuration file.
+   */
+  public static final class MemberMain
+  {
+    public static void main(String [] args)
+    {
+      try
+      {
+        final File configurationFile = new File(args[0]);
+        final Configuration configuration = SerializationUtils.deserialize(Files.readAllBytes(configurationFile.toPath()));
+        final int index = Integer.parseInt(args[1]);
+        final MemberResult result;
+        if (configuration.model == Model.MULTI_LEVEL)
+        {
+          final MultiLevelProposalFactory factory = new MultiLevelProposalFactory();
+          factory.dataFile = configuration.dataFile;
+          result = run(configuration.options(index), factory, factory.getDataset().getTree());
+        }
+        else
+          result = run(configuration.options(index), new MarkovChainFactory(), TestUtilities.perfectBinaryTree(configuration.depth));
+        Files.write(new File(configurationFile.getParentFile(), "result-" + index).toPath(), SerializationUtils.serialize(result));
+      }
+      catch (Throwable t)
+      {
+        t.printStackTrace();
+        System.exit(1); // otherwise the Hazelcast threads keep the JVM alive
+      }
+      System.exit(0);
+    }
+
+    private static <P, N> MemberResult run(DCOptions options, DCProposalFactory<P, N> proposalFactory, DirectedTree<N> tree)
+    {
+      final DistributedDC<P, N> dc = DistributedDC.createInstance(options, proposalFactory, tree);
+      dc.processorFactories.clear(); // the timing of each node is not needed
+      final AtomicReference<DCMetrics.Snapshot> metrics = new AtomicReference<>();
+      dc.addProgressListener((member, cluster) -> metrics.set(member)); // the last call is made at the end of the run
+      final long startMillis = System.currentTimeMillis();
+      dc.start();
+      return new MemberResult(startMillis, System.currentTimeMillis(), metrics.get());
+    }
+  }
+
+  /**
+   * The example of Doc, without fields, so that the run ids of the members match (see DistributedDC).
+   */
+  private static final class MarkovChainFactory implements DCProposalFactory<Integer, Node>
+  {
+    private transient DCProposalFactory<Integer, Node> factory = null;
+
+    @Override
+    public DCProposal<Integer> build(Random random, Node currentNode, List<Node> childrenNodes)
+    {
+      if (factory == null)
+        factory = Doc.markovChainNaiveProposalFactory(Doc.transition, Doc.prior);
+      return factory.build(random, currentNode, childrenNodes);
+    }
+  }
+}
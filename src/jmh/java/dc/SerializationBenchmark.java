@@ -0,0 +1,128 @@
+package dc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import prototype.Node;
+import prototype.adaptor.MultiLevelSerializers;
+import prototype.smc.BrownianModelCalculator;
+import prototype.smc.DivideConquerMCAlgorithm.Particle;
+import bayonet.smc.ParticlePopulation;
+import bayonet.smc.ResamplingScheme;
+
+import com.hazelcast.config.SerializationConfig;
+import com.hazelcast.config.SerializerConfig;
+import com.hazelcast.nio.serialization.DefaultSerializationServiceBuilder;
+import com.hazelcast.nio.serialization.SerializationService;
+
+
+
+/**
+ * Round trips of resampled populations through Java serialization and the Hazelcast encodings 
+ * (see DCOptions.compactSerialization and DCOptions.compressPopulations).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class SerializationBenchmark
+{
+  @Param({"1000", "100000"})
+  public int nParticles;
+  
+  @Param({"MARKOV_CHAIN", "MULTI_LEVEL"})
+  public String model;
+  
+  private ParticlePopulation<?> population;
+  private SerializationService defaultEncoding, compactEncoding, compressedEncoding;
+  
+  @Setup
+  public void setup()
+  {
+    final Random random = new Random(1);
+    if (model.equals("MULTI_LEVEL"))
+      population = PopulationSerializerTest.multiLevelPopulation(random, nParticles, 2, 1);
+    else
+    {
+      final double [] logWeights = new double[nParticles];
+      final List<Integer> particles = new ArrayList<>(nParticles);
+      for (int i = 0; i < nParticles; i++)
+      {
+        logWeights[i] = random.nextGaussian();
+        particles.add(random.nextInt(2));
+      }
+      population = Resampling.resample(random, ResamplingScheme.MULTINOMIAL, 
+          ParticlePopulation.buildDestructivelyFromLogWeights(logWeights, particles, 0.0), nParticles);
+    }
+    defaultEncoding = new DefaultSerializationServiceBuilder().build();
+    final SerializationConfig compact = compactConfig();
+    compactEncoding = new DefaultSerializationServiceBuilder().setConfig(compact).build();
+    final SerializationConfig compressed = new SerializationConfig();
+    compressed.addSerializerConfig(new SerializerConfig()
+        .setTypeClass(ParticlePopulation.class).setImplementation(new CompressedPopulationSerializer(compact)));
+    compressedEncoding = new DefaultSerializationServiceBuilder().setConfig(compressed).build();
+  }
+  
+  @Benchmark
+  public Object java() throws IOException, ClassNotFoundException
+  {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes))
+    {
+      out.writeObject(population);
+    }
+    try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())))
+    {
+      return in.readObject();
+    }
+  }
+  
+  @Benchmark
+  public Object hazelcastDefault()
+  {
+    return defaultEncoding.toObject(defaultEncoding.toData(population));
+  }
+  
+  @Benchmark
+  public Object hazelcastCompact()
+  {
+    return compactEncoding.toObject(compactEncoding.toData(population));
+  }
+  
+  @Benchmark
+  public Object hazelcastCompressed()
+  {
+    return compressedEncoding.toObject(compressedEncoding.toData(population));
+  }
+  
+  private static SerializationConfig compactConfig()
+  {
+    final SerializationConfig result = new SerializationConfig();
+    result.addSerializerConfig(new SerializerConfig().setTypeClass(ParticlePopulation.class).setImplementation(new PopulationSerializer()));
+    result.addSerializerConfig(new SerializerConfig().setTypeClass(Node.class).setImplementation(new MultiLevelSerializers.NodeSerializer()));
+    result.addSerializerConfig(new SerializerConfig().setTypeClass(Particle.class).setImplementation(new MultiLevelSerializers.ParticleSerializer()));
+    result.addSerializerConfig(new SerializerConfig().setTypeClass(BrownianModelCalculator.class).setImplementation(new BrownianModelCalculator.Serializer()));
+    return result;
+  }
+}
@@ -0,0 +1,129 @@
+package prototype.adaptor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.math3.distribution.BetaDistribution;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import prototype.Node;
+import prototype.smc.BrownianModelCalculator;
+import prototype.smc.DivideConquerMCAlgorithm.Particle;
+import bayonet.distributions.Random2RandomGenerator;
+import bayonet.smc.ParticlePopulation;
+import dc.DCOptions;
+import dc.DCProposal;
+import dc.DCRecursion;
+
+
+
+/**
+ * One DC recursion step with the multi-level model proposals, at an internal node whose children 
+ * are leaves with synthetic binomial observations, and the Brownian message combination it relies on.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class MultiLevelBenchmark
+{
+  @Param({"1000", "100000"})
+  public int nParticles;
+  
+  @Param({"2", "10"})
+  public int fanOut;
+  
+  @Param({"1", "4"})
+  public int nThreads;
+  
+  /**
+   * Whether the proposals are used as DCBatchProposal, or called once per particle.
+   */
+  @Param({"false", "true"})
+  public boolean batchProposal;
+  
+  private static final double VARIANCE_PRIOR = 1.0;
+  private static final int N_TRIALS = 100;
+  
+  private DCOptions options;
+  private ForkJoinPool pool;
+  private Node node;
+  private List<Node> childrenNodes;
+  private List<ParticlePopulation<Particle>> childrenPopulations;
+  private List<BrownianModelCalculator> childrenCalculators;
+  
+  @Setup
+  public void setup()
+  {
+    options = new DCOptions();
+    options.nParticles = nParticles;
+    options.proposalBlockSize = Math.max(1, nParticles / 64);
+    options.nProposalThreads = nThreads;
+    pool = nThreads > 1 ? new ForkJoinPool(nThreads) : null;
+    node = Node.root("root");
+    childrenNodes = new ArrayList<>();
+    childrenPopulations = new ArrayList<>();
+    childrenCalculators = new ArrayList<>();
+    final Random random = new Random(1);
+    for (int c = 0; c < fanOut; c++)
+    {
+      final Node child = node.child("" + c);
+      final int nSuccesses = random.nextInt(N_TRIALS + 1);
+      childrenNodes.add(child);
+      childrenPopulations.add(DCRecursion.dcRecurse(
+          new Random(c), options, Collections.emptyList(), 
+          blockRandom -> proposal(new MultiLevelLeafProposal(
+              new BetaDistribution(new Random2RandomGenerator(blockRandom), 1 + nSuccesses, 1 + N_TRIALS - nSuccesses, 
+                  BetaDistribution.DEFAULT_INVERSE_ABSOLUTE_ACCURACY), 
+              N_TRIALS, nSuccesses, child)), 
+          Collections.emptyList(), pool));
+      childrenCalculators.add(BrownianModelCalculator.observation(new double[]{random.nextGaussian()}, 1, false));
+    }
+  }
+  
+  @TearDown
+  public void tearDown()
+  {
+    if (pool != null)
+      pool.shutdown();
+  }
+  
+  @Benchmark
+  public ParticlePopulation<Particle> dcRecurse()
+  {
+    return DCRecursion.dcRecurse(new Random(1), options, childrenPopulations, 
+        blockRandom -> proposal(new MultiLevelInternalProposal(VARIANCE_PRIOR, node, childrenNodes)), 
+        Collections.emptyList(), pool);
+  }
+  
+  @Benchmark
+  public BrownianModelCalculator combine()
+  {
+    return BrownianModelCalculator.combine(childrenCalculators, VARIANCE_PRIOR);
+  }
+  
+  /**
+   * @return The given proposal, or, unless batchProposal is set, a proposal calling it once per particle.
+   */
+  private DCProposal<Particle> proposal(DCProposal<Particle> proposal)
+  {
+    return batchProposal ? proposal : (random, childrenParticles) -> proposal.propose(random, childrenParticles);
+  }
+}
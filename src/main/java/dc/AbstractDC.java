@@ -0,0 +1,175 @@
+package dc;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import bayonet.graphs.DirectedTree;
+import bayonet.smc.ParticlePopulation;
+import briefj.run.Results;
+
+
+
+/**
+ * State and per-node computation shared by the execution engines (see DistributedDC and LocalDC).
+ *
+ * Given the options, proposal factory and tree, all engines produce the same output: the random
+ * stream of each node only depends on the master seed and the node, and the nodes' populations
+ * do not depend on the order in which they are computed.
+ *
+ * @param <P>
+ * @param <N>
+ */
+public abstract class AbstractDC<P, N>
+{
+  final DCOptions options;
+  final DCProposalFactory<P, N> proposalFactory;
+  final DirectedTree<N> tree;
+  final List<DCProcessorFactory<P, N>> processorFactories = new ArrayList<>();
+  ForkJoinPool proposalPool; // null unless proposals within a node are parallelized
+
+  private ParticlePopulation<P> rootPopulation = null;
+  private boolean started = false;
+  private final int instanceIndex = nInstances.getAndIncrement();
+  private File outputFolder = null;
+  
+  private static final AtomicInteger nInstances = new AtomicInteger();
+
+  AbstractDC(
+      final DCOptions options,
+      final DCProposalFactory<P, N> proposalFactory,
+      final DirectedTree<N> tree)
+  {
+    this.options = options;
+    this.proposalFactory = proposalFactory;
+    this.tree = tree;
+    // add a default processor
+    this.processorFactories.add(new DefaultProcessorFactory<P,N>());
+  }
+
+  public void addProcessorFactory(DCProcessorFactory<P, N> factory)
+  {
+    this.processorFactories.add(factory);
+  }
+
+  /**
+   * Performs the sampling, returning once the root population is available.
+   */
+  public void start()
+  {
+    try
+    {
+      startAsync().get();
+    }
+    catch (InterruptedException | ExecutionException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+  
+  /**
+   * Starts the sampling without blocking.
+   * 
+   * @return A future completed with the root population (also available from getRootPopulation() afterwards).
+   */
+  public abstract CompletableFuture<ParticlePopulation<P>> startAsync();
+
+  public ParticlePopulation<P> getRootPopulation()
+  {
+    return rootPopulation;
+  }
+
+  /**
+   * @return The folder of this run's output files, 'run-[index]' in the results folder, the index counting 
+   *   the instances created in this JVM, so that runs in progress at the same time do not write to the 
+   *   same files.
+   */
+  synchronized File outputFolder()
+  {
+    if (outputFolder == null)
+    {
+      outputFolder = new File(Results.getResultFolder(), "run-" + instanceIndex);
+      outputFolder.mkdirs();
+    }
+    return outputFolder;
+  }
+
+  /**
+   * @return The number of workers currently cooperating on this computation.
+   */
+  abstract int nWorkers();
+
+  /**
+   * Computes the population of the given node from the populations of its children, which are
+   * not needed anymore afterwards.
+   */
+  final ParticlePopulation<P> recurse(N node, List<ParticlePopulation<P>> childrenPopulations)
+  {
+    final List<N> childrenNodes = new ArrayList<>(tree.getChildren(node));
+    List<DCProcessor<P>> processors = new ArrayList<>();
+    final Random random = getRandom(node);
+
+    synchronized (proposalFactory)
+    {
+      for (DCProcessorFactory<P, N> factory : processorFactories)
+        processors.add(factory.build(new DCProcessorFactoryContext<P,N>(node, this)));
+    }
+    // called once with random, or once per block with the block's random (see DCOptions.proposalBlockSize)
+    final Function<Random, DCProposal<P>> proposals = proposalRandom ->
+    {
+      synchronized (proposalFactory)
+      {
+        return proposalFactory.build(proposalRandom, node, childrenNodes);
+      }
+    };
+    final ParticlePopulation<P> result = DCRecursion.dcRecurse(random, options, childrenPopulations, proposals, processors, proposalPool);
+    for (ParticlePopulation<P> childPopulation : childrenPopulations)
+      OutOfCoreParticleList.deleteIfOutOfCore(childPopulation.particles);
+    return result;
+  }
+
+  /**
+   * @return A random generator approximately unique to this node and master random, a CounterRandom
+   *   if DCOptions.counterBasedRandom is set.
+   */
+  private Random getRandom(N node)
+  {
+    final int prime = 31;
+    long seed = 1;
+    seed = prime * seed + options.masterRandomSeed;
+    seed = prime * seed + node.hashCode();
+    return options.counterBasedRandom ? new CounterRandom(seed) : new Random(seed);
+  }
+
+  final void checkNotAlreadyStarted()
+  {
+    if (started)
+      throw new RuntimeException();
+    started = true;
+  }
+
+  final void createProposalPool()
+  {
+    if ((options.proposalBlockSize > 0 || options.counterBasedRandom || options.parallelResamplingScheme != null) 
+        && options.nProposalThreads > 1)
+      this.proposalPool = new ForkJoinPool(options.nProposalThreads);
+  }
+
+  /**
+   * Closes the processor factories and the proposal pool, and saves the root population.
+   */
+  final void finish(ParticlePopulation<P> rootPopulation)
+  {
+    for (DCProcessorFactory<P, N> factory : processorFactories)
+      factory.close();
+    this.rootPopulation = rootPopulation;
+    if (proposalPool != null)
+      proposalPool.shutdown();
+  }
+}
@@ -0,0 +1,120 @@
+package dc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+
+import bayonet.smc.ParticlePopulation;
+
+
+
+/**
+ * Files holding the populations of the nodes completed by a run, one file per node (see
+ * DCOptions.checkpointDirectory).
+ *
+ * Files are written in a background thread, so that tasks do not wait for the disk, and are
+ * renamed once complete, so that a crash never leaves a partial checkpoint behind. Files are named
+ * after the node's hashCode() (assumed to be the same in all members, see PopulationKey) and also
+ * store the node, so that a collision only causes a node to be recomputed.
+ *
+ * Each file also stores the digest of the data of the node's subtree (see DCProposalFactory.dataHash), so
+ * that after the data changed, only the nodes on the paths from the changed nodes to the root are
+ * recomputed, the populations of their siblings being read from the files.
+ */
+final class Checkpoints<P, N>
+{
+  private final File directory;
+  private final ToLongFunction<N> subtreeDataHashes;
+  private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable ->
+  {
+    final Thread result = new Thread(runnable, "Checkpoints");
+    result.setDaemon(true);
+    return result;
+  });
+
+  /**
+   * @param runKey Runs with different keys use different sub-directories
+   */
+  Checkpoints(File directory, String runKey, ToLongFunction<N> subtreeDataHashes)
+  {
+    this.directory = new File(directory, "run-" + Integer.toHexString(runKey.hashCode()));
+    this.directory.mkdirs();
+    this.subtreeDataHashes = subtreeDataHashes;
+  }
+
+  /**
+   * Schedules the writing of the node's population. The population should not be modified afterwards.
+   */
+  void save(N node, ParticlePopulation<P> population)
+  {
+    writer.execute(() ->
+    {
+      final File file = file(node);
+      final File temp = new File(directory, file.getName() + ".tmp");
+      try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(Files.newOutputStream(temp.toPath()))))
+      {
+        out.writeObject(node);
+        out.writeLong(subtreeDataHashes.applyAsLong(node));
+        out.writeObject(population);
+      }
+      catch (IOException e)
+      {
+        e.printStackTrace(); // the node will be recomputed if needed
+        return;
+      }
+      try
+      {
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      }
+      catch (IOException e)
+      {
+        e.printStackTrace();
+      }
+    });
+  }
+
+  /**
+   * @return The checkpointed population of the node, or null if there is none or the data of its subtree changed.
+   */
+  @SuppressWarnings("unchecked")
+  ParticlePopulation<P> load(N node)
+  {
+    final File file = file(node);
+    if (!file.exists())
+      return null;
+    try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(file.toPath()))))
+    {
+      if (!node.equals(in.readObject()) || in.readLong() != subtreeDataHashes.applyAsLong(node))
+        return null;
+      return (ParticlePopulation<P>) in.readObject();
+    }
+    catch (IOException | ClassNotFoundException e)
+    {
+      e.printStackTrace();
+      return null;
+    }
+  }
+
+  /**
+   * Waits for the scheduled checkpoints to be written.
+   */
+  void close() throws InterruptedException
+  {
+    writer.shutdown();
+    writer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+  }
+
+  private File file(N node)
+  {
+    return new File(directory, "node-" + Integer.toHexString(node.hashCode()));
+  }
+}
@@ -0,0 +1,97 @@
+package dc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import bayonet.smc.ParticlePopulation;
+
+import com.hazelcast.config.SerializationConfig;
+import com.hazelcast.nio.BufferObjectDataOutput;
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.DefaultSerializationServiceBuilder;
+import com.hazelcast.nio.serialization.SerializationService;
+import com.hazelcast.nio.serialization.StreamSerializer;
+
+
+
+/**
+ * Hazelcast serializer compressing the populations exchanged between members (see 
+ * DCOptions.compressPopulations).
+ * 
+ * Populations are first encoded with the given serializers (e.g. PopulationSerializer, which 
+ * writes the copies created by resampling as counts, or else with Java serialization, which 
+ * writes the survivors once, see IndexedList), and the result is compressed with Deflater's 
+ * fastest setting. The sizes and times are recorded in PopulationCodecStats.
+ */
+@SuppressWarnings("rawtypes")
+final class CompressedPopulationSerializer implements StreamSerializer<ParticlePopulation>
+{
+  static final int TYPE_ID = 104;
+  
+  private final SerializationService encoder;
+  
+  /**
+   * @param encoding The serializers used before compression.
+   */
+  CompressedPopulationSerializer(SerializationConfig encoding)
+  {
+    this.encoder = new DefaultSerializationServiceBuilder().setConfig(encoding).build();
+  }
+
+  @Override
+  public void write(ObjectDataOutput out, ParticlePopulation population) throws IOException
+  {
+    final long start = System.nanoTime();
+    final BufferObjectDataOutput encoded = encoder.createObjectDataOutput(BUFFER_SIZE);
+    encoded.writeObject(population);
+    final byte [] bytes = encoded.toByteArray();
+    final ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 4 + 16);
+    final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    try (DeflaterOutputStream deflaterStream = new DeflaterOutputStream(compressed, deflater, BUFFER_SIZE))
+    {
+      deflaterStream.write(bytes);
+    }
+    finally
+    {
+      deflater.end();
+    }
+    out.writeInt(bytes.length);
+    out.writeByteArray(compressed.toByteArray());
+    PopulationCodecStats.record(bytes.length, compressed.size(), System.nanoTime() - start);
+  }
+
+  @Override
+  public ParticlePopulation read(ObjectDataInput in) throws IOException
+  {
+    final long start = System.nanoTime();
+    final byte [] bytes = new byte[in.readInt()];
+    final byte [] compressed = in.readByteArray();
+    try (DataInputStream inflaterStream = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(compressed))))
+    {
+      inflaterStream.readFully(bytes);
+    }
+    final ParticlePopulation result = encoder.createObjectDataInput(bytes).readObject();
+    PopulationCodecStats.record(bytes.length, compressed.length, System.nanoTime() - start);
+    return result;
+  }
+
+  @Override
+  public int getTypeId()
+  {
+    return TYPE_ID;
+  }
+
+  @Override
+  public void destroy() 
+  {
+    encoder.destroy();
+  }
+  
+  private static final int BUFFER_SIZE = 1 << 16;
+}
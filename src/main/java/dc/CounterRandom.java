@@ -0,0 +1,117 @@
+package dc;
+
+import java.util.Random;
+
+
+
+/**
+ * A counter-based random generator: the n-th number of a stream is a hash (SplitMix64 finalizer) of
+ * the stream's key and n, so that no state is shared between draws and any stream can be started
+ * anywhere. Used for all the random draws of a node when DCOptions.counterBasedRandom is set.
+ *
+ * In DCRecursion, each particle then gets its own stream, keyed by the node's key and the particle
+ * index (see seekParticle()), so that any particle can be proposed independently, by any thread,
+ * with the same result. Faster than java.util.Random since no synchronization is needed, but, like
+ * it, should not be shared between threads.
+ */
+public final class CounterRandom extends Random
+{
+  private static final long serialVersionUID = 1L;
+  private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+  // NB: no initializers, since Random's constructor calls setSeed(..) before they would run
+  private long key;
+  private long streamKey;
+  private long counter;
+
+  public CounterRandom(long key)
+  {
+    super(key);
+  }
+
+  /**
+   * Restarts at the beginning of the stream of the given key.
+   */
+  @Override
+  public void setSeed(long key)
+  {
+    this.key = key;
+    this.streamKey = mix(key);
+    this.counter = 0;
+  }
+
+  /**
+   * Moves to the beginning of the stream of the given particle. Batch proposals should call this before
+   * proposing each particle (see DCBatchProposal), other proposals are called after it.
+   */
+  public void seekParticle(int particleIndex)
+  {
+    streamKey = DCRecursion.blockSeed(key, particleIndex);
+    counter = 0;
+  }
+
+  /**
+   * Calls seekParticle(..) if the given generator is a CounterRandom, otherwise does nothing.
+   */
+  public static void seek(Random random, int particleIndex)
+  {
+    if (random instanceof CounterRandom)
+      ((CounterRandom) random).seekParticle(particleIndex);
+  }
+
+  /**
+   * @return A generator independent of this one, with a key derived from this one's key and the index.
+   */
+  public CounterRandom split(int index)
+  {
+    return new CounterRandom(DCRecursion.blockSeed(~key, index));
+  }
+
+  @Override
+  public long nextLong()
+  {
+    return mix(streamKey + (++counter) * GOLDEN_GAMMA);
+  }
+
+  @Override
+  protected int next(int bits)
+  {
+    return (int) (nextLong() >>> (64 - bits));
+  }
+
+  @Override
+  public int nextInt()
+  {
+    return (int) (nextLong() >>> 32);
+  }
+
+  @Override
+  public double nextDouble()
+  {
+    return (nextLong() >>> 11) * 0x1.0p-53;
+  }
+
+  /**
+   * Polar method, without keeping the second value for the next call (unlike java.util.Random), so
+   * that each particle's draws only depend on its stream.
+   */
+  @Override
+  public double nextGaussian()
+  {
+    double v1, v2, s;
+    do
+    {
+      v1 = 2 * nextDouble() - 1;
+      v2 = 2 * nextDouble() - 1;
+      s = v1 * v1 + v2 * v2;
+    } while (s >= 1 || s == 0);
+    return v1 * StrictMath.sqrt(-2 * StrictMath.log(s) / s);
+  }
+
+  private static long mix(long z)
+  {
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+}
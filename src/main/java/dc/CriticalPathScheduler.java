@@ -0,0 +1,109 @@
+package dc;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToDoubleFunction;
+
+import bayonet.graphs.DirectedTree;
+
+
+
+/**
+ * Runs the tasks received by a member with a fixed number of threads, always picking next the ready
+ * task with the longest remaining critical path, i.e. the largest estimated cost of the task itself
+ * plus its ancestors up to the root (see DCOptions.criticalPathScheduling). Ties are run in the
+ * order received.
+ *
+ * This way, the tasks that the end of the run depends on, such as the nodes of a deep chain, are not
+ * delayed by tasks whose ancestors can be computed quickly.
+ */
+final class CriticalPathScheduler<N>
+{
+  private final DirectedTree<N> tree;
+  private final ToDoubleFunction<N> nodeCost;
+  private final Map<N, Double> subtreeCosts = new ConcurrentHashMap<>();
+  private final ThreadPoolExecutor threads;
+  private final AtomicLong nReceived = new AtomicLong();
+
+  CriticalPathScheduler(DirectedTree<N> tree, ToDoubleFunction<N> nodeCost, int nThreads)
+  {
+    this.tree = tree;
+    this.nodeCost = nodeCost;
+    this.threads = new ThreadPoolExecutor(nThreads, nThreads, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>());
+  }
+
+  /**
+   * @param wholeSubtree If the task computes the whole subtree of the node rather than the node only
+   */
+  void execute(N node, boolean wholeSubtree, Runnable task)
+  {
+    threads.execute(new PrioritizedTask(criticalPath(node, wholeSubtree), nReceived.getAndIncrement(), task));
+  }
+
+  /**
+   * @return The number of tasks received but not started.
+   */
+  int nQueued()
+  {
+    return threads.getQueue().size();
+  }
+
+  /**
+   * Stops the threads once the tasks received are done.
+   */
+  void close()
+  {
+    threads.shutdown();
+  }
+
+  double criticalPath(N node, boolean wholeSubtree)
+  {
+    double result = wholeSubtree ? subtreeCost(node) : nodeCost.applyAsDouble(node);
+    for (N ancestor = tree.getParent(node); ancestor != null; ancestor = tree.getParent(ancestor))
+      result += nodeCost.applyAsDouble(ancestor);
+    return result;
+  }
+
+  private double subtreeCost(N node)
+  {
+    final Double cached = subtreeCosts.get(node);
+    if (cached != null)
+      return cached;
+    double result = nodeCost.applyAsDouble(node);
+    for (N child : tree.getChildren(node))
+      result += subtreeCost(child);
+    subtreeCosts.put(node, result);
+    return result;
+  }
+
+  private static final class PrioritizedTask implements Runnable, Comparable<PrioritizedTask>
+  {
+    private final double criticalPath;
+    private final long order;
+    private final Runnable task;
+
+    PrioritizedTask(double criticalPath, long order, Runnable task)
+    {
+      this.criticalPath = criticalPath;
+      this.order = order;
+      this.task = task;
+    }
+
+    @Override
+    public void run()
+    {
+      task.run();
+    }
+
+    @Override
+    public int compareTo(PrioritizedTask other)
+    {
+      final int result = Double.compare(other.criticalPath, criticalPath); // longest first
+      return result != 0 ? result : Long.compare(order, other.order);
+    }
+  }
+}
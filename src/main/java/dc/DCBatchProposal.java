@@ -0,0 +1,73 @@
+package dc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.lang3.tuple.Pair;
+
+
+/**
+ * Optional alternative to DCProposal, called once per node (or once per block, see
+ * DCOptions.proposalBlockSize) instead of once per particle, and writing its output
+ * in arrays instead of allocating a Pair for each particle.
+ *
+ * To use it, have the DCProposal returned by the DCProposalFactory also implement
+ * this interface. Other proposals are adapted automatically (see from()).
+ *
+ * Note: implementation do not need to be thread safe, even when the distributed/parallel version is used.
+ *
+ * @param <P>
+ */
+@FunctionalInterface
+public interface DCBatchProposal<P>
+{
+
+  /**
+   * Propose the parent particles with index in [start, end) given the children.
+   * All the randomness should be obtained via the provided random object. When it is a CounterRandom
+   * (see DCOptions.counterBasedRandom), CounterRandom.seek(random, i) should be called before proposing 
+   * particle i.
+   *
+   * @param random
+   * @param childrenParticles The children of parent particle i are childrenParticles.get(c).get(i), for
+   *    each child c. Should not be modified.
+   * @param start
+   * @param end
+   * @param logWeightUpdates Output: the LOG weight update of particle i should be written in logWeightUpdates[i]
+   * @param proposed Output: the proposed particle i should be written with proposed.set(i, ..). This is a 
+   *    fixed size list backed by an array.
+   */
+  public void propose(
+      Random random,
+      List<List<P>> childrenParticles,
+      int start,
+      int end,
+      double [] logWeightUpdates,
+      List<P> proposed);
+
+  /**
+   * @return The proposal itself if it implements DCBatchProposal, otherwise a batch proposal calling
+   *    it once per particle.
+   */
+  @SuppressWarnings("unchecked")
+  public static <P> DCBatchProposal<P> from(DCProposal<P> proposal)
+  {
+    if (proposal instanceof DCBatchProposal)
+      return (DCBatchProposal<P>) proposal;
+    return (random, childrenParticles, start, end, logWeightUpdates, proposed) ->
+    {
+      final int nChildren = childrenParticles.size();
+      for (int particleIndex = start; particleIndex < end; particleIndex++)
+      {
+        final List<P> currentChildren = new ArrayList<>(nChildren);
+        for (final List<P> childParticles : childrenParticles)
+          currentChildren.add(childParticles.get(particleIndex));
+        CounterRandom.seek(random, particleIndex);
+        final Pair<Double, P> current = proposal.propose(random, currentChildren);
+        logWeightUpdates[particleIndex] = current.getLeft();
+        proposed.set(particleIndex, current.getRight());
+      }
+    };
+  }
+}
@@ -0,0 +1,462 @@
+package dc;
+
+import java.io.File;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import briefj.OutputManager;
+
+
+
+/**
+ * Counters and latency histograms of a DistributedDC run on this member (see DistributedDC.getMetrics()).
+ *
+ * The metrics are exposed over JMX as soon as the run starts (see DCMetricsMXBean). Every
+ * DCOptions.metricsIntervalSeconds, and once more at the end of the run, this member publishes a
+ * snapshot of its metrics to the cluster, appends it together with the sum over all members to the
+ * file 'metrics' of the run's folder (see AbstractDC.outputFolder()), and calls the progress listeners.
+ */
+public final class DCMetrics implements DCMetricsMXBean
+{
+  private final String runId;
+  private final int nNodes;
+  private final Supplier<File> outputFolder;
+  private final long startTime = System.currentTimeMillis();
+
+  private final AtomicLong nTasksSubmitted = new AtomicLong();
+  private final AtomicLong nTasksStarted = new AtomicLong();
+  private final AtomicLong nTasksDone = new AtomicLong();
+  private final AtomicLong nNodesDone = new AtomicLong();
+  private final AtomicLong nParticlesProposed = new AtomicLong();
+  private final AtomicLong nSerializedBytes = new AtomicLong();
+  private final Histogram taskWaitMillis = new Histogram();
+  private final Histogram taskRunMillis = new Histogram();
+  private final Histogram storeMicros = new Histogram();
+  private final Histogram fetchMicros = new Histogram();
+  private final Histogram serializeMicros = new Histogram();
+  private final Histogram decrementMicros = new Histogram();
+  private final Object transfers = new Object(); // guards the metrics of stored and fetched populations
+
+  private final List<DCProgressListener> listeners = new CopyOnWriteArrayList<>();
+
+  // set by startReporting(..)
+  private String memberId = "local";
+  private LongSupplier nTasksQueued = () -> 0;
+  private LongSupplier nStoredPopulations = () -> 0;
+  private LongSupplier nStoredPopulationBytes = () -> 0;
+  private Map<String, Snapshot> published = null;
+  private ScheduledExecutorService reporter = null;
+  private OutputManager output = null;
+  private ObjectName jmxName = null;
+
+  /**
+   * @param outputFolder Where the file 'metrics' is written
+   */
+  DCMetrics(String runId, int nNodes, Supplier<File> outputFolder)
+  {
+    this.runId = runId;
+    this.nNodes = nNodes;
+    this.outputFolder = outputFolder;
+  }
+
+  public void addProgressListener(DCProgressListener listener)
+  {
+    listeners.add(listener);
+  }
+
+  /**
+   * @return The current metrics of this member.
+   */
+  public Snapshot snapshot()
+  {
+    synchronized (transfers) // so that a population is either counted in all of the transfer metrics, or none
+    {
+      return new Snapshot(
+          memberId,
+          System.currentTimeMillis() - startTime,
+          nNodes,
+          nTasksSubmitted.get(),
+          nTasksStarted.get(),
+          nTasksDone.get(),
+          nTasksQueued.getAsLong(),
+          nNodesDone.get(),
+          nParticlesProposed.get(),
+          nSerializedBytes.get(),
+          nStoredPopulations.getAsLong(),
+          nStoredPopulationBytes.getAsLong(),
+          taskWaitMillis.copy(),
+          taskRunMillis.copy(),
+          storeMicros.copy(),
+          fetchMicros.copy(),
+          serializeMicros.copy(),
+          decrementMicros.copy());
+    }
+  }
+
+  /**
+   * @return The sum of the last snapshots published by the members of the run, or the snapshot of this
+   *   member if the run has not started.
+   */
+  public Snapshot clusterSnapshot()
+  {
+    if (published == null || published.isEmpty())
+      return snapshot();
+    return Snapshot.sum(published.values());
+  }
+
+  void taskSubmitted()                { nTasksSubmitted.incrementAndGet(); }
+  void taskStarted(long waitMillis)   { nTasksStarted.incrementAndGet(); taskWaitMillis.record(waitMillis); }
+  void taskDone(long runMillis)       { nTasksDone.incrementAndGet(); taskRunMillis.record(runMillis); }
+  void nodeDone(int nParticles)       { nNodesDone.incrementAndGet(); nParticlesProposed.addAndGet(nParticles); }
+  void decremented(long micros)       { decrementMicros.record(micros); }
+  
+  void stored(long bytes, long micros, long serializeMicros) 
+  { 
+    synchronized (transfers)
+    {
+      nSerializedBytes.addAndGet(bytes); 
+      storeMicros.record(micros); 
+      this.serializeMicros.record(serializeMicros);
+    }
+  }
+  
+  void fetched(long bytes, long micros, long deserializeMicros) 
+  { 
+    synchronized (transfers)
+    {
+      nSerializedBytes.addAndGet(bytes); 
+      fetchMicros.record(micros); 
+      serializeMicros.record(deserializeMicros);
+    }
+  }
+
+  /**
+   * Registers the JMX bean, and starts publishing snapshots to the given map every intervalSeconds
+   * (if positive).
+   */
+  void startReporting(
+      String memberId,
+      Map<String, Snapshot> published,
+      LongSupplier nTasksQueued,
+      LongSupplier nStoredPopulations,
+      LongSupplier nStoredPopulationBytes,
+      int intervalSeconds)
+  {
+    this.memberId = memberId;
+    this.published = published;
+    this.nTasksQueued = nTasksQueued;
+    this.nStoredPopulations = nStoredPopulations;
+    this.nStoredPopulationBytes = nStoredPopulationBytes;
+    try
+    {
+      final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      jmxName = new ObjectName("dc:type=DistributedDC,run=" + ObjectName.quote(runId));
+      if (!server.isRegistered(jmxName))
+        server.registerMBean(this, jmxName);
+    }
+    catch (JMException e)
+    {
+      throw new RuntimeException(e);
+    }
+    if (intervalSeconds > 0)
+    {
+      reporter = Executors.newSingleThreadScheduledExecutor(runnable ->
+      {
+        final Thread result = new Thread(runnable, "DCMetrics-" + runId);
+        result.setDaemon(true);
+        return result;
+      });
+      reporter.scheduleAtFixedRate(this::report, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * Reports a last time and stops reporting, to be called before leaving the cluster.
+   */
+  void close()
+  {
+    if (reporter != null)
+    {
+      reporter.shutdown();
+      try
+      {
+        reporter.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      }
+      catch (InterruptedException e)
+      {
+        throw new RuntimeException(e);
+      }
+    }
+    report();
+    try
+    {
+      if (jmxName != null)
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(jmxName);
+    }
+    catch (JMException e)
+    {
+      throw new RuntimeException(e);
+    }
+    synchronized (this)
+    {
+      if (output != null)
+        output.close();
+    }
+  }
+
+  private synchronized void report()
+  {
+    final Snapshot member = snapshot();
+    if (published != null)
+      published.put(memberId, member);
+    final Snapshot cluster = clusterSnapshot();
+    if (output == null)
+    {
+      output = new OutputManager();
+      output.setOutputFolder(outputFolder.get());
+    }
+    write(member);
+    write(cluster);
+    output.flush();
+    for (DCProgressListener listener : listeners)
+      listener.progress(member, cluster);
+  }
+
+  private void write(Snapshot snapshot)
+  {
+    output.write("metrics",
+        "member", snapshot.memberId,
+        "elapsedMillis", snapshot.elapsedMillis,
+        "tasksSubmitted", snapshot.nTasksSubmitted,
+        "tasksQueued", snapshot.nTasksQueued,
+        "tasksRunning", snapshot.nTasksRunning(),
+        "tasksDone", snapshot.nTasksDone,
+        "nodesDone", snapshot.nNodesDone,
+        "particlesPerSecond", snapshot.particlesPerSecond(),
+        "serializedBytes", snapshot.nSerializedBytes,
+        "storedPopulations", snapshot.nStoredPopulations,
+        "storedPopulationBytes", snapshot.nStoredPopulationBytes,
+        "meanTaskWaitMillis", snapshot.taskWaitMillis.mean(),
+        "p99TaskWaitMillis", snapshot.taskWaitMillis.percentile(0.99),
+        "meanTaskRunMillis", snapshot.taskRunMillis.mean(),
+        "meanStoreMicros", snapshot.storeMicros.mean(),
+        "meanFetchMicros", snapshot.fetchMicros.mean(),
+        "p99FetchMicros", snapshot.fetchMicros.percentile(0.99),
+        "meanSerializeMicros", snapshot.serializeMicros.mean(),
+        "meanDecrementMicros", snapshot.decrementMicros.mean(),
+        "p99DecrementMicros", snapshot.decrementMicros.percentile(0.99),
+        "estimatedMillisToCompletion", snapshot.estimatedMillisToCompletion());
+  }
+
+  // JMX, see DCMetricsMXBean
+
+  @Override public long getTasksSubmitted()               { return nTasksSubmitted.get(); }
+  @Override public long getTasksQueued()                  { return nTasksQueued.getAsLong(); }
+  @Override public long getTasksRunning()                 { return nTasksStarted.get() - nTasksDone.get(); }
+  @Override public long getTasksDone()                    { return nTasksDone.get(); }
+  @Override public long getNodesDone()                    { return nNodesDone.get(); }
+  @Override public double getParticlesPerSecond()         { return snapshot().particlesPerSecond(); }
+  @Override public long getSerializedBytes()              { return nSerializedBytes.get(); }
+  @Override public long getStoredPopulations()            { return nStoredPopulations.getAsLong(); }
+  @Override public long getStoredPopulationBytes()        { return nStoredPopulationBytes.getAsLong(); }
+  @Override public double getMeanTaskWaitMillis()         { return taskWaitMillis.mean(); }
+  @Override public double getMeanFetchMicros()            { return fetchMicros.mean(); }
+  @Override public double getMeanSerializeMicros()        { return serializeMicros.mean(); }
+  @Override public double getMeanDecrementMicros()        { return decrementMicros.mean(); }
+  @Override public long getClusterNodesDone()             { return clusterSnapshot().nNodesDone; }
+  @Override public double getClusterParticlesPerSecond()  { return clusterSnapshot().particlesPerSecond(); }
+  @Override public long getEstimatedMillisToCompletion()  { return clusterSnapshot().estimatedMillisToCompletion(); }
+
+  /**
+   * Metrics of one member at one point in time, or their sum over the members of a run.
+   */
+  public static final class Snapshot implements Serializable
+  {
+    private static final long serialVersionUID = 1L;
+    public final String memberId;
+    public final long elapsedMillis;
+    public final int nNodes;
+    public final long nTasksSubmitted;
+    public final long nTasksStarted;
+    public final long nTasksDone;
+    public final long nTasksQueued;
+    public final long nNodesDone;
+    public final long nParticlesProposed;
+    public final long nSerializedBytes; // populations stored and fetched, before compression if any
+    public final long nStoredPopulations;
+    public final long nStoredPopulationBytes;
+    public final Histogram taskWaitMillis; // from the creation of a task to its start
+    public final Histogram taskRunMillis;
+    public final Histogram storeMicros; // writing a population to the cluster
+    public final Histogram fetchMicros; // reading the children populations of a node from the cluster
+    public final Histogram serializeMicros; // encoding or decoding populations, part of the store and fetch times
+    public final Histogram decrementMicros; // removing a node from the unprocessed children of its parent
+
+    Snapshot(String memberId, long elapsedMillis, int nNodes, long nTasksSubmitted, long nTasksStarted,
+        long nTasksDone, long nTasksQueued, long nNodesDone, long nParticlesProposed, long nSerializedBytes,
+        long nStoredPopulations, long nStoredPopulationBytes, Histogram taskWaitMillis, Histogram taskRunMillis,
+        Histogram storeMicros, Histogram fetchMicros, Histogram serializeMicros, Histogram decrementMicros)
+    {
+      this.memberId = memberId;
+      this.elapsedMillis = elapsedMillis;
+      this.nNodes = nNodes;
+      this.nTasksSubmitted = nTasksSubmitted;
+      this.nTasksStarted = nTasksStarted;
+      this.nTasksDone = nTasksDone;
+      this.nTasksQueued = nTasksQueued;
+      this.nNodesDone = nNodesDone;
+      this.nParticlesProposed = nParticlesProposed;
+      this.nSerializedBytes = nSerializedBytes;
+      this.nStoredPopulations = nStoredPopulations;
+      this.nStoredPopulationBytes = nStoredPopulationBytes;
+      this.taskWaitMillis = taskWaitMillis;
+      this.taskRunMillis = taskRunMillis;
+      this.storeMicros = storeMicros;
+      this.fetchMicros = fetchMicros;
+      this.serializeMicros = serializeMicros;
+      this.decrementMicros = decrementMicros;
+    }
+
+    public long nTasksRunning()
+    {
+      return nTasksStarted - nTasksDone;
+    }
+
+    public double particlesPerSecond()
+    {
+      return elapsedMillis == 0 ? 0.0 : 1000.0 * nParticlesProposed / elapsedMillis;
+    }
+
+    /**
+     * @return An estimate assuming the remaining nodes take the same time on average as those done, or -1
+     *   if no node is done.
+     */
+    public long estimatedMillisToCompletion()
+    {
+      if (nNodesDone == 0)
+        return -1;
+      return Math.max(0, elapsedMillis * (nNodes - nNodesDone) / nNodesDone);
+    }
+
+    /**
+     * @return The sum of the counts and histograms of the given snapshots, with the largest elapsed time.
+     */
+    static Snapshot sum(Collection<Snapshot> snapshots)
+    {
+      long elapsedMillis = 0, nTasksSubmitted = 0, nTasksStarted = 0, nTasksDone = 0, nTasksQueued = 0,
+          nNodesDone = 0, nParticlesProposed = 0, nSerializedBytes = 0, nStoredPopulations = 0, nStoredPopulationBytes = 0;
+      int nNodes = 0;
+      final Histogram taskWaitMillis = new Histogram(), taskRunMillis = new Histogram(), storeMicros = new Histogram(),
+          fetchMicros = new Histogram(), serializeMicros = new Histogram(), decrementMicros = new Histogram();
+      for (Snapshot snapshot : new ArrayList<>(snapshots))
+      {
+        elapsedMillis = Math.max(elapsedMillis, snapshot.elapsedMillis);
+        nNodes = snapshot.nNodes;
+        nTasksSubmitted += snapshot.nTasksSubmitted;
+        nTasksStarted += snapshot.nTasksStarted;
+        nTasksDone += snapshot.nTasksDone;
+        nTasksQueued += snapshot.nTasksQueued;
+        nNodesDone += snapshot.nNodesDone;
+        nParticlesProposed += snapshot.nParticlesProposed;
+        nSerializedBytes += snapshot.nSerializedBytes;
+        nStoredPopulations += snapshot.nStoredPopulations;
+        nStoredPopulationBytes += snapshot.nStoredPopulationBytes;
+        taskWaitMillis.add(snapshot.taskWaitMillis);
+        taskRunMillis.add(snapshot.taskRunMillis);
+        storeMicros.add(snapshot.storeMicros);
+        fetchMicros.add(snapshot.fetchMicros);
+        serializeMicros.add(snapshot.serializeMicros);
+        decrementMicros.add(snapshot.decrementMicros);
+      }
+      return new Snapshot("cluster", elapsedMillis, nNodes, nTasksSubmitted, nTasksStarted, nTasksDone, nTasksQueued,
+          nNodesDone, nParticlesProposed, nSerializedBytes, nStoredPopulations, nStoredPopulationBytes,
+          taskWaitMillis, taskRunMillis, storeMicros, fetchMicros, serializeMicros, decrementMicros);
+    }
+  }
+
+  /**
+   * Counts of non-negative values in buckets of exponentially increasing size ([0, 1], (1, 2], (2, 4], ...),
+   * so that percentiles are known within a factor 2.
+   */
+  public static final class Histogram implements Serializable
+  {
+    private static final long serialVersionUID = 1L;
+    private final long [] counts = new long[64];
+    private long count = 0;
+    private long sum = 0;
+    private long max = 0;
+
+    synchronized void record(long value)
+    {
+      value = Math.max(0, value);
+      counts[64 - Long.numberOfLeadingZeros(Math.max(0, value - 1))]++;
+      count++;
+      sum += value;
+      max = Math.max(max, value);
+    }
+
+    public synchronized long count()
+    {
+      return count;
+    }
+
+    public synchronized double mean()
+    {
+      return count == 0 ? 0.0 : ((double) sum) / count;
+    }
+
+    public synchronized long max()
+    {
+      return max;
+    }
+
+    /**
+     * @return An upper bound on the given quantile, at most twice the actual value.
+     */
+    public synchronized long percentile(double quantile)
+    {
+      long remaining = (long) Math.ceil(quantile * count);
+      for (int bucket = 0; bucket < counts.length; bucket++)
+      {
+        remaining -= counts[bucket];
+        if (remaining <= 0)
+          return Math.min(max, 1L << bucket);
+      }
+      return max;
+    }
+
+    synchronized Histogram copy()
+    {
+      final Histogram result = new Histogram();
+      result.add(this);
+      return result;
+    }
+
+    synchronized void add(Histogram other)
+    {
+      synchronized (other)
+      {
+        for (int bucket = 0; bucket < counts.length; bucket++)
+          counts[bucket] += other.counts[bucket];
+        count += other.count;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+      }
+    }
+  }
+}
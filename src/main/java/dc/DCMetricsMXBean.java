@@ -0,0 +1,27 @@
+package dc;
+
+
+
+/**
+ * The metrics of a DistributedDC run exposed over JMX, under the name dc:type=DistributedDC,run="[runId]" 
+ * (see DCMetrics). Unless their name starts with Cluster, they concern this member only.
+ */
+public interface DCMetricsMXBean
+{
+  public long getTasksSubmitted();
+  public long getTasksQueued();
+  public long getTasksRunning();
+  public long getTasksDone();
+  public long getNodesDone();
+  public double getParticlesPerSecond();
+  public long getSerializedBytes();
+  public long getStoredPopulations();
+  public long getStoredPopulationBytes();
+  public double getMeanTaskWaitMillis();
+  public double getMeanFetchMicros();
+  public double getMeanSerializeMicros();
+  public double getMeanDecrementMicros();
+  public long getClusterNodesDone();
+  public double getClusterParticlesPerSecond();
+  public long getEstimatedMillisToCompletion();
+}
@@ -1,5 +1,6 @@
 package dc;
 
+import java.io.File;
 import java.io.Serializable;
 
 import bayonet.math.NumericalUtils;
@@ -21,9 +22,65 @@ public class DCOptions implements Serializable
   @Option
   public ResamplingScheme resamplingScheme = ResamplingScheme.MULTINOMIAL;
   
+  @Option(gloss = "If set, used instead of resamplingScheme, computing the ancestors in parallel with the "
+      + "proposal threads (see nProposalThreads). Meant for very large populations.")
+  public ParallelResamplingScheme parallelResamplingScheme = null;
+  
   @Option(gloss = "Resample when the ess is below this value.")
   public double relativeEssThreshold = 1.0 + NumericalUtils.THRESHOLD;
   
+  @Option(gloss = "If true, nParticles is ignored and the number of particles of each node is picked using a pilot "
+      + "run with minNParticles particles, so that the estimated variance of the node's log normalization estimate "
+      + "is close to targetLogZVariance")
+  public boolean adaptiveNParticles = false;
+  
+  @Option(gloss = "See adaptiveNParticles")
+  public int minNParticles = 100;
+  
+  @Option(gloss = "See adaptiveNParticles")
+  public int maxNParticles = 1_000_000;
+  
+  @Option(gloss = "See adaptiveNParticles")
+  public double targetLogZVariance = 0.001;
+  
+  @Option(gloss = "How children particles are matched to form parent particles (see MergeScheme)")
+  public MergeScheme mergeScheme = MergeScheme.INDEX_MATCHING;
+  
+  @Option(gloss = "Number of candidates averaged per parent particle, unless mergeScheme is INDEX_MATCHING")
+  public int nMergeCandidates = 4;
+  
+  @Option(gloss = "If set, the particles proposed at each node are stored in files in this directory instead "
+      + "of the heap. When using several machines, this should be a directory they share.")
+  public File outOfCoreDirectory = null;
+  
+  @Option(gloss = "Number of consecutive particles per file, see outOfCoreDirectory")
+  public int outOfCoreChunkSize = 100_000;
+  
+  @Option(gloss = "If set, the population of each node computed by a cluster task is also written to this directory. "
+      + "A run restarted with the same options and directory only recomputes the nodes missing from it, and members "
+      + "replacing a lost member read the populations it stored from it. Should be shared by the members for the latter.")
+  public File checkpointDirectory = null;
+  
+  @Option(gloss = "Use compact Hazelcast serializers for the populations sent between members (see "
+      + "DistributedDC.addSerializer). Weights are then rebuilt and can differ in the last bits.")
+  public boolean compactSerialization = false;
+  
+  @Option(gloss = "Compress the populations sent between members, recording the compression ratio and time "
+      + "of each node in the file 'compression' of the run's folder (see AbstractDC.outputFolder()).")
+  public boolean compressPopulations = false;
+  
+  @Option(gloss = "Interval between the snapshots of the metrics of the run written to the file 'metrics' of the "
+      + "run's folder and sent to the progress listeners (see DCMetrics). Zero to only report at the end.")
+  public int metricsIntervalSeconds = 10;
+  
+  @Option(gloss = "If set, members find each other over TCP/IP at these comma separated addresses (host or host:port, "
+      + "e.g. 127.0.0.1:5701,127.0.0.1:5702 for two members on one machine) instead of by multicast.")
+  public String tcpIpMembers = null;
+  
+  @Option(gloss = "If positive, this member listens on exactly this port, failing to start if it is taken, instead of "
+      + "the first free port from 5701, e.g. so that the addresses of tcpIpMembers are those of the members.")
+  public int port = 0; // see below
+  
   @Option(gloss = "Set to different values if otherwise identical runs "
       + "should be prevented from communicating.")
   public int clusterSubGroup = 1;
@@ -31,6 +88,27 @@ public class DCOptions implements Serializable
   @Option
   public int nThreadsPerNode = 1;
   
+  @Option(gloss = "If true, the nThreadsPerNode threads of each member run the task with the longest remaining "
+      + "path to the root first, instead of the first task received.")
+  public boolean criticalPathScheduling = false;
+  
+  @Option(gloss = "If positive, each member delays starting new subtrees while the populations it stores and "
+      + "computes would exceed this many megabytes, giving priority to tasks that complete parents in progress. "
+      + "Uses the scheduler of criticalPathScheduling.")
+  public int memoryBudgetMB = 0;
+  
+  @Option(gloss = "If positive, the particles of each node are proposed in blocks of this size, "
+      + "each with its own random stream. The output then depends on this value but not on nProposalThreads.")
+  public int proposalBlockSize = 0;
+  
+  @Option(gloss = "Number of threads used to propose the blocks of one node (see proposalBlockSize).")
+  public int nProposalThreads = 1;
+  
+  @Option(gloss = "Use counter-based random streams (see CounterRandom), one per particle, instead of java.util.Random. "
+      + "The particles of a node can then be proposed in parallel even if proposalBlockSize is not set, and the output "
+      + "depends on neither proposalBlockSize nor nProposalThreads.")
+  public boolean counterBasedRandom = false;
+  
   @Option(gloss = "Wait to have a certain number of members to the cluster before starting.")
   public int minimumNumberOfClusterMembersToStart = 1;
   
@@ -40,12 +118,25 @@ public class DCOptions implements Serializable
   @Option(gloss = "A method for coarsening the granularity of basic tasks. See README.md")
   public int maximumDistributionDepth = Integer.MAX_VALUE;
   
+  @Option(gloss = "If true, maximumDistributionDepth is ignored and the tree is split into tasks of roughly equal "
+      + "estimated cost, about nTasksPerThread per thread of the cluster. See README.md")
+  public boolean costBasedPartitioning = false;
+  
+  @Option(gloss = "See costBasedPartitioning")
+  public int nTasksPerThread = 4;
+  
+  @Option(gloss = "If positive and costBasedPartitioning is set, the cost of each node is measured in a pilot run "
+      + "with this number of particles instead of being estimated from nParticles and the number of children.")
+  public int pilotNParticles = 0;
+  
   @Option(gloss = "Indexing cluster members is optional. This is just convenient in certain "
       + "scenarios to help keep track of jobs e.g. when launching jobs with westrun.")
   public int indexInCluster = 1;  // see below
 
   /**
-   * Warning: the constant below should match exactly with the name of the field above.
+   * Warning: the constants below should match exactly with the names of the fields above, which differ 
+   * between the members of a run.
    */
   static String INDEX_IN_CLUSTER_FIELD_NAME = "indexInCluster";
+  static String PORT_FIELD_NAME = "port";
 }
\ No newline at end of file
@@ -1,5 +1,7 @@
 package dc;
 
+import java.io.File;
+
 import bayonet.graphs.DirectedTree;
 
 
@@ -7,11 +9,29 @@ import bayonet.graphs.DirectedTree;
 public class DCProcessorFactoryContext<P,N>
 {
   public final N currentNode;
-  public final DirectedTree<N> tree() { return dc.tree; }
-  public final DistributedDC<P, N> dc;
-  DCProcessorFactoryContext(N currentNode, DirectedTree<N> tree)
+  public final DirectedTree<N> tree() { return engine.tree; }
+  public final DistributedDC<P, N> dc; // null when not running distributed (see LocalDC)
+  private final AbstractDC<P, N> engine;
+  DCProcessorFactoryContext(N currentNode, AbstractDC<P, N> engine)
   {
     this.currentNode = currentNode;
-    this.dc = DistributedDC.getInstance();
+    this.engine = engine;
+    this.dc = engine instanceof DistributedDC ? (DistributedDC<P, N>) engine : null;
+  }
+  
+  /**
+   * @return The folder where the files of this run should be written (see AbstractDC.outputFolder()).
+   */
+  public File outputFolder()
+  {
+    return engine.outputFolder();
+  }
+  
+  /**
+   * @return The number of workers currently cooperating on the computation (cluster members, or 1 when local).
+   */
+  public int nWorkers()
+  {
+    return engine.nWorkers();
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,18 @@
+package dc;
+
+import dc.DCMetrics.Snapshot;
+
+
+
+/**
+ * Called periodically during a DistributedDC run, see DCMetrics and DCOptions.metricsIntervalSeconds.
+ */
+@FunctionalInterface
+public interface DCProgressListener
+{
+  /**
+   * @param member The metrics of this member
+   * @param cluster The sum of the metrics of all the members of the run
+   */
+  public void progress(Snapshot member, Snapshot cluster);
+}
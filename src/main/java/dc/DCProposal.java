@@ -7,6 +7,8 @@ import org.apache.commons.lang3.tuple.Pair;
 
 
 /**
+ * See also DCBatchProposal, to propose all the particles of a node in one call.
+ * 
  * Note: implementation do not need to be thread safe, even when the distributed/parallel version is used.
  * 
  * @author Alexandre Bouchard (alexandre.bouchard@gmail.com)
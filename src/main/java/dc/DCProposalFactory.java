@@ -23,4 +23,17 @@ public interface DCProposalFactory<P, N>
    * @return
    */
   public DCProposal<P> build(Random random, N currentNode, List<N> childrenNodes);
+  
+  /**
+   * Optional: a hash of the data the proposals of the node depend on (excluding those of its descendants), 
+   * when the data can change between runs. Distinct data should give distinct hashes, e.g. by packing the 
+   * values rather than summing them; the hashes of a subtree are combined with SHA-256. Checkpointed 
+   * populations are only reused when the data of the node's subtree is unchanged (see 
+   * DCOptions.checkpointDirectory). Implementations should then not include the data, or the file it is 
+   * read from, in the fields hashed to identify runs (e.g. make them transient).
+   */
+  default long dataHash(N node)
+  {
+    return 0L;
+  }
 }
\ No newline at end of file
@@ -1,11 +1,15 @@
 package dc;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Random;
-
-import org.apache.commons.lang3.tuple.Pair;
+import java.util.RandomAccess;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.stream.IntStream;
 
 import bayonet.smc.ParticlePopulation;
 
@@ -15,7 +19,7 @@ import bayonet.smc.ParticlePopulation;
 
 public final class DCRecursion
 {
-  
+
   public static <P> ParticlePopulation<P> dcRecurse(
       final Random random,
       final DCOptions options,
@@ -23,55 +27,549 @@ public final class DCRecursion
       final DCProposal<P> proposal,
       final Collection<DCProcessor<P>> processors)
   {
-    ParticlePopulation<P> result = dcPropose(random, options.nParticles, childrenPopulations, proposal);
+    return dcRecurse(random, options, childrenPopulations, blockRandom -> proposal, processors, null);
+  }
+
+  /**
+   *
+   * @param random
+   * @param options
+   * @param childrenPopulations
+   * @param proposals Builds a proposal given a random stream. Called once per block when
+   *   DCOptions.proposalBlockSize is positive (in which case the proposals built should not
+   *   share mutable state), otherwise called once with the provided random object.
+   * @param processors
+   * @param pool Used to propose the blocks in parallel. If null, blocks are processed serially.
+   *   In both cases the output is the same.
+   * @return
+   */
+  public static <P> ParticlePopulation<P> dcRecurse(
+      final Random random,
+      final DCOptions options,
+      final List<ParticlePopulation<P>> childrenPopulations,
+      final Function<Random, DCProposal<P>> proposals,
+      final Collection<DCProcessor<P>> processors,
+      final ForkJoinPool pool)
+  {
+    ParticlePopulation<P> result = null;
+    if (options.adaptiveNParticles)
+    {
+      final ParticlePopulation<P> pilot = dcPropose(random, options, options.minNParticles, childrenPopulations, proposals, pool);
+      final int nParticles = adaptedNParticles(options, pilot.getRelativeESS());
+      if (nParticles <= pilot.nParticles())
+        result = pilot;
+      else
+      {
+        OutOfCoreParticleList.deleteIfOutOfCore(pilot.particles);
+        result = dcPropose(random, options, nParticles, childrenPopulations, proposals, pool);
+      }
+    }
+    else
+      result = dcPropose(random, options, options.nParticles, childrenPopulations, proposals, pool);
     for (DCProcessor<P> processor : processors)
       processor.process(result, childrenPopulations);
     final double relativeESS = result.getRelativeESS();
     if (relativeESS < options.relativeEssThreshold)
-      result = result.resample(random, options.resamplingScheme);
+      result = resample(random, options, result, result.nParticles(), pool); // view, no copy
     return result;
   }
   
+  /**
+   * Same as dcRecurse, specialized to int particles: particles, weights and children 
+   * states are kept in primitive arrays, and no object is allocated per particle.
+   * To use DCProcessors, see IntParticlePopulation.toParticlePopulation().
+   * The engines (LocalDC, DistributedDC) do not use it: it is meant for callers running the recursion 
+   * themselves, e.g. on a subtree of int particles.
+   */
+  public static IntParticlePopulation dcRecurseInt(
+      final Random random,
+      final DCOptions options,
+      final List<IntParticlePopulation> childrenPopulations,
+      final Function<Random, IntDCProposal> proposals,
+      final ForkJoinPool pool)
+  {
+    checkIndexMatching(options);
+    final int nParticles = options.nParticles;
+    checkPrimitiveChildrenPopulations(nParticles, childrenPopulations);
+    final int nChildren = childrenPopulations.size();
+    final int [] particles = new int[nParticles];
+    final double [] logWeights = new double[nParticles];
+    final ChildrenWeights childrenWeights = new ChildrenWeights(childrenPopulations);
+    
+    proposeAll(random, nParticles, options.proposalBlockSize, pool, (rangeRandom, start, end) -> 
+    {
+      final IntDCProposal proposal = proposals.apply(rangeRandom);
+      final int [] childrenParticles = new int[nChildren];
+      for (int particleIndex = start; particleIndex < end; particleIndex++)
+      {
+        for (int c = 0; c < nChildren; c++)
+          childrenParticles[c] = childrenPopulations.get(c).particles[particleIndex];
+        CounterRandom.seek(rangeRandom, particleIndex);
+        final double logWeightUpdate = proposal.propose(rangeRandom, childrenParticles, particles, particleIndex);
+        logWeights[particleIndex] = childrenWeights.logWeight(particleIndex) + logWeightUpdate;
+      }
+    });
+    
+    IntParticlePopulation result = IntParticlePopulation.buildDestructivelyFromLogWeights(logWeights, particles, childrenWeights.sumLogScaling);
+    if (result.getRelativeESS() < options.relativeEssThreshold)
+      result = options.parallelResamplingScheme == null ?
+          result.resample(random, options.resamplingScheme) :
+          result.resample(random, options.parallelResamplingScheme, pool);
+    return result;
+  }
+  
+  /**
+   * Same as dcRecurseInt, for double particles.
+   */
+  public static DoubleParticlePopulation dcRecurseDouble(
+      final Random random,
+      final DCOptions options,
+      final List<DoubleParticlePopulation> childrenPopulations,
+      final Function<Random, DoubleDCProposal> proposals,
+      final ForkJoinPool pool)
+  {
+    checkIndexMatching(options);
+    final int nParticles = options.nParticles;
+    checkPrimitiveChildrenPopulations(nParticles, childrenPopulations);
+    final int nChildren = childrenPopulations.size();
+    final double [] particles = new double[nParticles];
+    final double [] logWeights = new double[nParticles];
+    final ChildrenWeights childrenWeights = new ChildrenWeights(childrenPopulations);
+    
+    proposeAll(random, nParticles, options.proposalBlockSize, pool, (rangeRandom, start, end) -> 
+    {
+      final DoubleDCProposal proposal = proposals.apply(rangeRandom);
+      final double [] childrenParticles = new double[nChildren];
+      for (int particleIndex = start; particleIndex < end; particleIndex++)
+      {
+        for (int c = 0; c < nChildren; c++)
+          childrenParticles[c] = childrenPopulations.get(c).particles[particleIndex];
+        CounterRandom.seek(rangeRandom, particleIndex);
+        final double logWeightUpdate = proposal.propose(rangeRandom, childrenParticles, particles, particleIndex);
+        logWeights[particleIndex] = childrenWeights.logWeight(particleIndex) + logWeightUpdate;
+      }
+    });
+    
+    DoubleParticlePopulation result = DoubleParticlePopulation.buildDestructivelyFromLogWeights(logWeights, particles, childrenWeights.sumLogScaling);
+    if (result.getRelativeESS() < options.relativeEssThreshold)
+      result = options.parallelResamplingScheme == null ?
+          result.resample(random, options.resamplingScheme) :
+          result.resample(random, options.parallelResamplingScheme, pool);
+    return result;
+  }
+
+  private static <P> ParticlePopulation<P> resample(
+    final Random random,
+    final DCOptions options,
+    final ParticlePopulation<P> population,
+    final int nParticles,
+    final ForkJoinPool pool)
+  {
+    return options.parallelResamplingScheme == null ?
+        Resampling.resample(random, options.resamplingScheme, population, nParticles) :
+        Resampling.resample(random, options.parallelResamplingScheme, population, nParticles, pool);
+  }
+  
+  /**
+   * Children populations with a different number of particles are first resampled to nParticles.
+   */
   private static <P> ParticlePopulation<P> dcPropose(
     final Random random,
+    final DCOptions options,
+    final int nParticles,
+    final List<ParticlePopulation<P>> childrenPopulations,
+    final Function<Random, DCProposal<P>> proposals,
+    final ForkJoinPool pool)
+  {
+    final List<ParticlePopulation<P>> alignedChildren = new ArrayList<>(childrenPopulations.size());
+    for (final ParticlePopulation<P> childPopulation : childrenPopulations)
+      alignedChildren.add(childPopulation.nParticles() == nParticles ?
+          childPopulation :
+          resample(random, options, childPopulation, nParticles, pool));
+    return options.mergeScheme == MergeScheme.INDEX_MATCHING ?
+        dcPropose(random, options, nParticles, options.proposalBlockSize, alignedChildren, proposals, pool) :
+        dcProposeMixture(random, options, nParticles, alignedChildren, proposals, pool);
+  }
+  
+  /**
+   * Uses the relative ESS of a pilot population to estimate the number of particles needed for the 
+   * variance of the node's log normalization estimate, approximately (1/rESS - 1)/nParticles, to 
+   * reach DCOptions.targetLogZVariance.
+   */
+  static int adaptedNParticles(DCOptions options, double pilotRelativeESS)
+  {
+    final double needed = Math.ceil((1.0 / pilotRelativeESS - 1.0) / options.targetLogZVariance);
+    return (int) Math.max(options.minNParticles, Math.min(options.maxNParticles, needed));
+  }
+  
+  private static <P> ParticlePopulation<P> dcPropose(
+    final Random random,
+    final DCOptions options,
+    final int nParticles,
+    final int blockSize,
+    final List<ParticlePopulation<P>> childrenPopulations,
+    final Function<Random, DCProposal<P>> proposals,
+    final ForkJoinPool pool)
+  {
+    checkChildrenPopulations(nParticles, childrenPopulations);
+
+    final List<P> particles = newParticleList(options, nParticles);
+    final double [] logWeights = new double[nParticles];
+
+    proposeAll(random, nParticles, blockSize, pool, (rangeRandom, start, end) -> 
+      proposeRange(rangeRandom, proposals.apply(rangeRandom), childrenPopulations, start, end, logWeights, particles));
+
+    return ParticlePopulation.buildDestructivelyFromLogWeights(logWeights, particles, childrenSumLogScaling(childrenPopulations));
+  }
+  
+  /**
+   * See MergeScheme.PERMUTATIONS and MergeScheme.PRODUCT_SUBSAMPLING.
+   */
+  private static <P> ParticlePopulation<P> dcProposeMixture(
+    final Random random,
+    final DCOptions options,
     final int nParticles,
     final List<ParticlePopulation<P>> childrenPopulations,
-    final DCProposal<P> proposal)
+    final Function<Random, DCProposal<P>> proposals,
+    final ForkJoinPool pool)
   {
+    final int nCandidates = options.nMergeCandidates;
     final int nChildren = childrenPopulations.size();
-    if (nChildren != childrenPopulations.size())
-      throw new RuntimeException();
+    final boolean subsample = options.mergeScheme == MergeScheme.PRODUCT_SUBSAMPLING;
+    checkChildrenPopulations(nParticles, childrenPopulations);
+    if (nCandidates < 1)
+      throw new RuntimeException("nMergeCandidates should be positive");
+    
+    // indices[m][c][i]: particle of child c used by candidate m of parent particle i
+    final int [][][] indices = new int[nCandidates][nChildren][];
+    for (int m = 0; m < nCandidates; m++)
+      for (int c = 0; c < nChildren; c++)
+        indices[m][c] = subsample ? new int[nParticles] : permutation(random, nParticles, m == 0);
     
-    final List<P> particles = new ArrayList<>(nParticles);
+    final double [][] candidateLogWeights = new double[nCandidates][nParticles];
+    final List<P> particles = newParticleList(options, nParticles);
     final double [] logWeights = new double[nParticles];
+    
+    proposeAll(random, nParticles, options.proposalBlockSize, pool, (rangeRandom, start, end) ->
+    {
+      final DCBatchProposal<P> proposal = DCBatchProposal.from(proposals.apply(rangeRandom));
+      final boolean counterBased = rangeRandom instanceof CounterRandom;
+      // the candidates are only needed within the block, so only the selected particles are stored out of core
+      final List<List<P>> candidateParticles = new ArrayList<>(nCandidates);
+      for (int m = 0; m < nCandidates; m++)
+        candidateParticles.add(new RangeList<>(nParticles, start, end));
+      for (int m = 0; m < nCandidates; m++)
+      {
+        // with a CounterRandom, each candidate and subsampled child gets its own particle streams
+        final Random candidateRandom = counterBased ? ((CounterRandom) rangeRandom).split(m * (nChildren + 1)) : rangeRandom;
+        final List<List<P>> childrenParticles = new ArrayList<>(nChildren);
+        for (int c = 0; c < nChildren; c++)
+        {
+          final int [] childIndices = indices[m][c];
+          final Random indexRandom = counterBased ? ((CounterRandom) rangeRandom).split(m * (nChildren + 1) + c + 1) : rangeRandom;
+          if (subsample)
+            for (int i = start; i < end; i++)
+            {
+              CounterRandom.seek(indexRandom, i);
+              childIndices[i] = indexRandom.nextInt(nParticles);
+            }
+          childrenParticles.add(new IndexedList<>(childrenPopulations.get(c).particles, childIndices));
+        }
+        final double [] currentLogWeights = candidateLogWeights[m];
+        proposal.propose(candidateRandom, childrenParticles, start, end, currentLogWeights, candidateParticles.get(m));
+        for (int i = start; i < end; i++)
+        {
+          double childrenWeightProduct = 1.0;
+          for (int c = 0; c < nChildren; c++)
+            childrenWeightProduct *= childrenPopulations.get(c).getNormalizedWeight(indices[m][c][i]);
+          currentLogWeights[i] += Math.log(childrenWeightProduct);
+        }
+      }
+      
+      // keep one candidate per parent particle, weighted by the average candidate weight
+      for (int i = start; i < end; i++)
+      {
+        double max = Double.NEGATIVE_INFINITY;
+        for (int m = 0; m < nCandidates; m++)
+          max = Math.max(max, candidateLogWeights[m][i]);
+        if (max == Double.NEGATIVE_INFINITY)
+        {
+          logWeights[i] = Double.NEGATIVE_INFINITY;
+          particles.set(i, candidateParticles.get(0).get(i));
+          continue;
+        }
+        double sum = 0.0;
+        for (int m = 0; m < nCandidates; m++)
+          sum += Math.exp(candidateLogWeights[m][i] - max);
+        logWeights[i] = max + Math.log(sum / nCandidates);
+        CounterRandom.seek(rangeRandom, i);
+        double dart = rangeRandom.nextDouble() * sum;
+        int selected = 0;
+        while (selected < nCandidates - 1 && (dart -= Math.exp(candidateLogWeights[selected][i] - max)) >= 0.0)
+          selected++;
+        particles.set(i, candidateParticles.get(selected).get(i));
+      }
+    });
+    
+    return ParticlePopulation.buildDestructivelyFromLogWeights(logWeights, particles, childrenSumLogScaling(childrenPopulations));
+  }
+  
+  private static int [] permutation(Random random, int size, boolean identity)
+  {
+    final int [] result = new int[size];
+    for (int i = 0; i < size; i++)
+      result[i] = i;
+    if (!identity)
+      for (int i = size - 1; i > 0; i--)
+      {
+        final int j = random.nextInt(i + 1);
+        final int tmp = result[i];
+        result[i] = result[j];
+        result[j] = tmp;
+      }
+    return result;
+  }
+  
+  /**
+   * @return A list to hold the proposed particles, stored out of core if DCOptions.outOfCoreDirectory is set.
+   */
+  private static <P> List<P> newParticleList(DCOptions options, int nParticles)
+  {
+    if (options.outOfCoreDirectory != null)
+      return new OutOfCoreParticleList<>(options.outOfCoreDirectory, nParticles, options.outOfCoreChunkSize);
+    return newParticleList(nParticles);
+  }
+  
+  @SuppressWarnings("unchecked")
+  private static <P> List<P> newParticleList(int nParticles)
+  {
+    return Arrays.asList((P []) new Object[nParticles]);
+  }
+  
+  /**
+   * A fixed size list of which only the items with index in [start, end) can be set and read, 
+   * e.g. the candidates of a block of particles.
+   */
+  private static final class RangeList<P> extends AbstractList<P> implements RandomAccess
+  {
+    private final int size;
+    private final int start;
+    private final Object [] items;
+    
+    RangeList(int size, int start, int end)
+    {
+      this.size = size;
+      this.start = start;
+      this.items = new Object[end - start];
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public P get(int index)
+    {
+      return (P) items[index - start];
+    }
+    
+    @Override
+    public P set(int index, P item)
+    {
+      @SuppressWarnings("unchecked")
+      final P previous = (P) items[index - start];
+      items[index - start] = item;
+      return previous;
+    }
 
+    @Override
+    public int size()
+    {
+      return size;
+    }
+  }
+  
+  private static void checkIndexMatching(DCOptions options)
+  {
+    if (options.mergeScheme != MergeScheme.INDEX_MATCHING)
+      throw new RuntimeException("Only MergeScheme.INDEX_MATCHING is supported for primitive particles");
+  }
+
+  @FunctionalInterface
+  private static interface RangeProposer
+  {
+    public void propose(Random random, int start, int end);
+  }
+
+  @FunctionalInterface
+  private static interface BlockProposer
+  {
+    public void propose(int block, int start, int end);
+  }
+
+  /**
+   * If random is a CounterRandom, splits the particle indices into contiguous blocks, each proposed using a
+   * CounterRandom with the same key, drawn from the node's random object. Since each particle then has its 
+   * own stream (see CounterRandom), the output does not depend on the blocks, which are of size blockSize
+   * if it is positive, and otherwise sized to balance the threads of the pool.
+   * 
+   * Otherwise, if blockSize is not positive, proposes all particles using the provided random object.
+   * 
+   * Otherwise, splits the particle indices into contiguous blocks of fixed size, each proposed using its own
+   * random stream, derived from one seed drawn from the node's random object. Since the
+   * blocks boundaries and streams do not depend on the pool, the output is identical no matter
+   * how many threads are used.
+   */
+  private static void proposeAll(
+    final Random random,
+    final int nParticles,
+    final int blockSize,
+    final ForkJoinPool pool,
+    final RangeProposer rangeProposer)
+  {
+    if (random instanceof CounterRandom)
+    {
+      final long nodeKey = random.nextLong();
+      final int size = blockSize > 0 ? 
+          blockSize : 
+          Math.max(1, pool == null ? nParticles : nParticles / (BLOCKS_PER_THREAD * pool.getParallelism()));
+      proposeBlocks(nParticles, size, pool, (block, start, end) -> rangeProposer.propose(new CounterRandom(nodeKey), start, end));
+      return;
+    }
+    
+    if (blockSize <= 0)
+    {
+      rangeProposer.propose(random, 0, nParticles);
+      return;
+    }
+    
+    final long nodeSeed = random.nextLong();
+    proposeBlocks(nParticles, blockSize, pool, (block, start, end) -> 
+      rangeProposer.propose(new Random(blockSeed(nodeSeed, block)), start, end));
+  }
+  
+  private static final int BLOCKS_PER_THREAD = 4; // so that threads finishing early can help others
+  
+  private static void proposeBlocks(
+    final int nParticles,
+    final int blockSize,
+    final ForkJoinPool pool,
+    final BlockProposer blockProposer)
+  {
+    final int nBlocks = (nParticles + blockSize - 1) / blockSize;
+    final Runnable proposeBlocks = () ->
+    {
+      final IntStream blocks = IntStream.range(0, nBlocks);
+      (pool == null ? blocks : blocks.parallel()).forEach(block -> 
+      {
+        final int start = block * blockSize;
+        final int end = Math.min(nParticles, start + blockSize);
+        blockProposer.propose(block, start, end);
+      });
+    };
+
+    if (pool == null)
+      proposeBlocks.run();
+    else
+      pool.submit(proposeBlocks).join(); // parallel streams started from a pool's task run in that pool
+  }
+
+  private static <P> void proposeRange(
+    final Random random,
+    final DCProposal<P> proposal,
+    final List<ParticlePopulation<P>> childrenPopulations,
+    final int start,
+    final int end,
+    final double [] logWeights, // mod in place
+    final List<P> particles)    // mod in place
+  {
+    final List<List<P>> childrenParticles = new ArrayList<>(childrenPopulations.size());
     for (final ParticlePopulation<P> childPopulation : childrenPopulations)
-      if (childPopulation.nParticles() != nParticles)
-        throw new RuntimeException();
+      childrenParticles.add(childPopulation.particles);
+    
+    DCBatchProposal.from(proposal).propose(random, childrenParticles, start, end, logWeights, particles);
     
-    for (int particleIndex = 0; particleIndex < nParticles; particleIndex++)
+    for (int particleIndex = start; particleIndex < end; particleIndex++)
     {
-      final List<P> childrenParticles = new ArrayList<>(nChildren);
       double childrenWeightProduct = 1.0;
       for (final ParticlePopulation<P> childPopulation : childrenPopulations)
-      {
-        childrenParticles.add(childPopulation.particles.get(particleIndex));
         childrenWeightProduct *= childPopulation.getNormalizedWeight(particleIndex);
-      }
-        
-      final Pair<Double, P> proposed = proposal.propose(random, childrenParticles);
-      logWeights[particleIndex] = Math.log(childrenWeightProduct) + proposed.getLeft();
-      
-      particles.add(proposed.getRight());
+      logWeights[particleIndex] += Math.log(childrenWeightProduct);
+    }
+  }
+  
+  /**
+   * Log of the product of the children normalized weights for a given index. Equally weighted 
+   * children contribute a constant computed once.
+   */
+  private static final class ChildrenWeights
+  {
+    private final PrimitiveParticlePopulation [] weightedChildren;
+    private final double equallyWeightedLogWeight;
+    private final double sumLogScaling;
+    
+    ChildrenWeights(List<? extends PrimitiveParticlePopulation> childrenPopulations)
+    {
+      this.weightedChildren = childrenPopulations
+          .stream()
+          .filter(p -> !p.equallyWeighted)
+          .toArray(PrimitiveParticlePopulation[]::new);
+      this.equallyWeightedLogWeight = childrenPopulations
+          .stream()
+          .filter(p -> p.equallyWeighted)
+          .mapToDouble(p -> -Math.log(p.nParticles()))
+          .sum();
+      this.sumLogScaling = childrenPopulations
+          .stream()
+          .mapToDouble(p -> p.logScaling)
+          .sum();
     }
     
-    final double childrenSumLogScaling = childrenPopulations
+    double logWeight(int particleIndex)
+    {
+      if (weightedChildren.length == 0)
+        return equallyWeightedLogWeight;
+      double product = 1.0;
+      for (final PrimitiveParticlePopulation child : weightedChildren)
+        product *= child.getNormalizedWeight(particleIndex);
+      return equallyWeightedLogWeight + Math.log(product);
+    }
+  }
+  
+  private static void checkPrimitiveChildrenPopulations(
+    final int nParticles,
+    final List<? extends PrimitiveParticlePopulation> childrenPopulations)
+  {
+    for (final PrimitiveParticlePopulation childPopulation : childrenPopulations)
+      if (childPopulation.nParticles() != nParticles)
+        throw new RuntimeException();
+  }
+
+  private static <P> void checkChildrenPopulations(
+    final int nParticles,
+    final List<ParticlePopulation<P>> childrenPopulations)
+  {
+    for (final ParticlePopulation<P> childPopulation : childrenPopulations)
+      if (childPopulation.nParticles() != nParticles)
+        throw new RuntimeException();
+  }
+
+  private static <P> double childrenSumLogScaling(final List<ParticlePopulation<P>> childrenPopulations)
+  {
+    return childrenPopulations
         .stream()
         .mapToDouble(p -> p.logScaling)
         .sum();
-    
-    return ParticlePopulation.buildDestructivelyFromLogWeights(logWeights, particles, childrenSumLogScaling);
   }
-  
+
+  /**
+   * @return A seed for the given block, obtained by scrambling the node seed and block index
+   *   (SplitMix64 finalizer), so that neighbouring blocks get unrelated java.util.Random streams.
+   */
+  static long blockSeed(final long nodeSeed, final int block)
+  {
+    long z = nodeSeed + (block + 1) * 0x9E3779B97F4A7C15L;
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+
   private DCRecursion() {}
 }
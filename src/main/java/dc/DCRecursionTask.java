@@ -2,49 +2,118 @@ package dc;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Random;
+import java.util.Map;
+import java.util.Map.Entry;
 
 import bayonet.smc.ParticlePopulation;
 
+import com.hazelcast.map.AbstractEntryProcessor;
+
 
 
 
 final class DCRecursionTask<P, N>  implements Runnable, Serializable
 {
   private static final long serialVersionUID = 1L;
-  private final N currentNode;
+  private final String runId;
+  final N currentNode;
   private final boolean areChildrenPopulationsFromCluster;
+  private final long creationTime = System.currentTimeMillis(); // see DCMetrics
   
-  DCRecursionTask(final N currentNode, boolean areChildrenPopulationsFromCluster)
+  DCRecursionTask(final String runId, final N currentNode, boolean areChildrenPopulationsFromCluster)
   {
+    this.runId = runId;
     this.currentNode = currentNode;
     this.areChildrenPopulationsFromCluster = areChildrenPopulationsFromCluster;
   }
   
   private DistributedDC<P, N> dc()
   {
-    return DistributedDC.getInstance();
+    return DistributedDC.getInstance(runId);
   }
 
   @Override
   public void run()
   {
+    final DistributedDC<P, N> dc = dc();
+    if (dc.scheduler == null)
+    {
+      compute();
+      return;
+    }
+    final Runnable start = () -> dc.scheduler.execute(currentNode, !areChildrenPopulationsFromCluster, this::compute);
+    if (dc.memoryBudget == null)
+      start.run();
+    else
+      dc.memoryBudget.admit(currentNode, !areChildrenPopulationsFromCluster, start);
+  }
+  
+  private void compute()
+  {
+    final long startTime = System.currentTimeMillis();
+    final DistributedDC<P, N> dc = dc();
+    if (dc.memoryBudget != null)
+      dc.memoryBudget.running();
     try
     {
-      final DistributedDC<P, N> dc = dc();
-      final ParticlePopulation<P> newPopulation = run(currentNode, areChildrenPopulationsFromCluster);
-      dc.populations.put(currentNode, newPopulation);
+      dc.metrics.taskStarted(startTime - creationTime);
       final N parent = dc.tree.getParent(currentNode);
+      if (isAlreadyDone(parent))
+      {
+        if (parent != null)
+          dc.runningTasks.delete(currentNode);
+        return;
+      }
+      final ParticlePopulation<P> newPopulation = run(currentNode, areChildrenPopulationsFromCluster);
+      if (dc.checkpoints != null)
+        dc.checkpoints.save(currentNode, newPopulation);
+      final long storeStart = System.nanoTime();
+      PopulationCodecStats.start(); // the population is serialized in this thread
+      dc.populations.set(dc.populationKey(currentNode), newPopulation); // set: the previous value is not needed
+      final PopulationCodecStats stats = PopulationCodecStats.stop();
+      dc.metrics.stored(stats.rawBytes, (System.nanoTime() - storeStart) / 1000, stats.codecNanos / 1000);
+      if (dc.options.compressPopulations)
+        dc.reportCodecStats(currentNode, "compress", stats);
       if (parent != null)
+      {
         prepareNextTask(parent);
+        // last, so that if this member is lost before, the task is resubmitted rather than the parent never 
+        // being ready (if the parent was already notified, the copy is skipped, see isAlreadyDone(), and the 
+        // parent recovers the population as below if it was lost)
+        dc.runningTasks.delete(currentNode);
+      }
+      // NB: the root's running entry is destroyed with the run, since the run can end as soon as the root 
+      // population is set
     }
-    catch (Exception e)
+    catch (Throwable t) // e.g. also a StackOverflowError when computing a deep subtree
     {
-      e.printStackTrace();
+      t.printStackTrace();
+      dc.reportFailure(currentNode, t); // otherwise the run would wait forever for the root
+    }
+    finally
+    {
+      dc.metrics.taskDone(System.currentTimeMillis() - startTime);
+      if (dc.memoryBudget != null)
+        dc.memoryBudget.done(currentNode, !areChildrenPopulationsFromCluster);
     }
   }
   
+  /**
+   * @return If this is a copy, resubmitted by DistributedDC.recover(), of a task that already completed, 
+   *   i.e. its parent was already notified (or, for the root, its population set). Recomputing it 
+   *   would leave a population nobody removes.
+   */
+  private boolean isAlreadyDone(N parent)
+  {
+    final DistributedDC<P, N> dc = dc();
+    return parent == null ? 
+        dc.populations.containsKey(dc.populationKey(currentNode)) : 
+        !dc.unprocessedChildren.get(parent).contains(currentNode);
+  }
+  
   private ParticlePopulation<P> run(N node, boolean areChildrenPopulationsFromCluster)
   {
     final DistributedDC<P, N> dc = dc();
@@ -52,65 +121,97 @@ final class DCRecursionTask<P, N>  implements Runnable, Serializable
     final List<ParticlePopulation<P>> childrenPopulations = areChildrenPopulationsFromCluster ?
         getChildrenPopulationsFromCluster(childrenNodes) : 
         getChildrenPopulationsRecursively(childrenNodes);
-    DCProposal<P> proposal = null;
-    List<DCProcessor<P>> processors = new ArrayList<>();
-    final Random random = getRandom(node);
-    
-    synchronized (dc.proposalFactory) 
-    { 
-      proposal = dc.proposalFactory.build(random, node, childrenNodes); 
-      for (DCProcessorFactory<P, N> factory : dc.processorFactories)
-        processors.add(factory.build(new DCProcessorFactoryContext<P,N>(node, dc.tree)));
-    }
-    return DCRecursion.dcRecurse(random, dc.options, childrenPopulations, proposal, processors);
+    final ParticlePopulation<P> result = dc.recurse(node, childrenPopulations);
+    dc.metrics.nodeDone(result.nParticles());
+    return result;
   }
   
   private List<ParticlePopulation<P>> getChildrenPopulationsRecursively(
       List<N> childrenNodes)
   {
+    final DistributedDC<P, N> dc = dc();
+    if (dc.memoryBudget == null)
+    {
+      List<ParticlePopulation<P>> result = new ArrayList<>();
+      for (N childNode : childrenNodes)
+        result.add(run(childNode, false));
+      return result;
+    }
+    // in the order for which the memory budget charges the subtree (the output does not depend on it, 
+    // since each node has its own random stream)
+    final Map<N, ParticlePopulation<P>> computed = new HashMap<>();
+    for (N childNode : dc.memoryBudget.computationOrder(childrenNodes))
+      computed.put(childNode, run(childNode, false));
     List<ParticlePopulation<P>> result = new ArrayList<>();
     for (N childNode : childrenNodes)
-      result.add(run(childNode, false));
+      result.add(computed.get(childNode));
     return result;
   }
 
   private void prepareNextTask(final N parent)
   {
     final DistributedDC<P, N> dc = dc();
-    dc.nucLock.lock();
-    try
+    // atomic on the member owning the parent's entry, so only completions of siblings contend
+    final long start = System.nanoTime();
+    final boolean isParentReady = 
+        (Boolean) dc.unprocessedChildren.executeOnKey(parent, new ChildDone<N>(currentNode));
+    dc.metrics.decremented((System.nanoTime() - start) / 1000);
+    if (isParentReady)
+      dc.submitTask(new DCRecursionTask<>(runId, parent, true));
+  }
+  
+  /**
+   * Removes a child from the set of unprocessed children of its parent, returning true if this call 
+   * emptied the set. So a child completed twice (see isAlreadyDone()) never makes the parent ready twice 
+   * or before its siblings.
+   */
+  private static final class ChildDone<N> extends AbstractEntryProcessor<N, HashSet<N>>
+  {
+    private static final long serialVersionUID = 1L;
+    private final N child;
+    
+    ChildDone(N child)
     {
-      int numberOfUnprocessedChildrenForParent = dc.numberOfUnprocessedChildren.get(parent);
-      numberOfUnprocessedChildrenForParent--;
-      dc.numberOfUnprocessedChildren.put(parent, numberOfUnprocessedChildrenForParent);
-      if (numberOfUnprocessedChildrenForParent == 0)
-        dc.submitTask(new DCRecursionTask<>(parent, true));
+      this.child = child;
     }
-    finally
+
+    @Override
+    public Object process(Entry<N, HashSet<N>> entry)
     {
-      dc.nucLock.unlock();
+      final HashSet<N> unprocessed = entry.getValue();
+      if (!unprocessed.remove(child))
+        return false;
+      entry.setValue(unprocessed);
+      return unprocessed.isEmpty();
     }
   }
 
-  /**
-   * @return A random generator approximately unique to this node and master random.
-   */
-  private Random getRandom(N node)
-  {
-    final DistributedDC<P, N> dc = dc();
-    final int prime = 31;
-    long seed = 1;
-    seed = prime * seed + dc.options.masterRandomSeed;
-    seed = prime * seed + node.hashCode();
-    return new Random(seed);
-  }
-  
   private List<ParticlePopulation<P>> getChildrenPopulationsFromCluster(final List<N> childrenNodes)
   {
     final DistributedDC<P, N> dc = dc();
     final List<ParticlePopulation<P>> result = new ArrayList<>(childrenNodes.size());
+    final long start = System.nanoTime();
+    PopulationCodecStats.start();
     for (N child : childrenNodes)
-      result.add(dc.populations.remove(child)); // get and remove at same time (won't be needed anymore)
+      result.add(dc.populations.remove(dc.populationKey(child))); // get and remove at same time (won't be needed anymore), local (see PopulationKey)
+    final PopulationCodecStats stats = PopulationCodecStats.stop();
+    dc.metrics.fetched(stats.rawBytes, (System.nanoTime() - start) / 1000, stats.codecNanos / 1000);
+    if (dc.options.compressPopulations)
+      dc.reportCodecStats(currentNode, "decompressChildren", stats);
+    for (int i = 0; i < childrenNodes.size(); i++)
+      if (result.get(i) == null) // lost with a cluster member, see DistributedDC.recover()
+        result.set(i, recoverPopulation(childrenNodes.get(i)));
     return result;
   }
+  
+  /**
+   * @return The node's population read from its checkpoint if any, or recomputed from scratch otherwise 
+   *   (identical, since each node's random stream is fixed).
+   */
+  private ParticlePopulation<P> recoverPopulation(N node)
+  {
+    final DistributedDC<P, N> dc = dc();
+    final ParticlePopulation<P> checkpointed = dc.checkpoints == null ? null : dc.checkpoints.load(node);
+    return checkpointed != null ? checkpointed : run(node, false);
+  }
 }
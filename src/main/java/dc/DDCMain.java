@@ -3,6 +3,7 @@ package dc;
 import prototype.Node;
 import prototype.adaptor.MultiLevelProcessorFactory;
 import prototype.adaptor.MultiLevelProposalFactory;
+import prototype.adaptor.MultiLevelSerializers;
 import prototype.smc.DivideConquerMCAlgorithm.Particle;
 import briefj.opt.OptionSet;
 import briefj.run.Mains;
@@ -26,6 +27,7 @@ public class DDCMain implements Runnable
           proposalFactory, 
           proposalFactory.getDataset().getTree());
     instance.addProcessorFactory(new MultiLevelProcessorFactory());
+    MultiLevelSerializers.addTo(instance);
     instance.start();
   }
 
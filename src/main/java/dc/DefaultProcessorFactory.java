@@ -1,26 +1,38 @@
 package dc;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang3.time.StopWatch;
 
 import bayonet.smc.ParticlePopulation;
 import briefj.BriefIO;
 import briefj.OutputManager;
-import briefj.run.Results;
 
 
 
 
+/**
+ * Records the timing, ESS and normalization estimate of each node, in the run's folder (see
+ * AbstractDC.outputFolder()).
+ *
+ * Processors only queue a small record, which a background thread writes in batches, flushing
+ * at most every FLUSH_INTERVAL_MILLIS, so that the threads computing the nodes never wait for the disk.
+ */
 public class DefaultProcessorFactory<P, N> implements DCProcessorFactory<P, N>
 {
-  private final OutputManager output;
+  private OutputManager output = null; // created with the first processor
+  private File folder = null;
   private final StopWatch globalTime;
-  
+  private final BlockingQueue<Record> records = new LinkedBlockingQueue<>();
+  private Thread writer = null; // started with the first record
+
   public DefaultProcessorFactory()
   {
-    output = new OutputManager();
-    output.setOutputFolder(Results.getResultFolder());
     globalTime = new StopWatch();
   }
 
@@ -29,7 +41,16 @@ public class DefaultProcessorFactory<P, N> implements DCProcessorFactory<P, N>
   {
     if (!globalTime.isStarted())
       globalTime.start();
-    
+    if (writer == null)
+    {
+      folder = context.outputFolder();
+      output = new OutputManager();
+      output.setOutputFolder(folder);
+      writer = new Thread(this::write, "DefaultProcessorFactory");
+      writer.setDaemon(true);
+      writer.start();
+    }
+
     StopWatch timer = new StopWatch();
     timer.start();
     return new DCProcessor<P>() {
@@ -38,27 +59,120 @@ public class DefaultProcessorFactory<P, N> implements DCProcessorFactory<P, N>
           ParticlePopulation<P> populationBeforeResampling,
           List<ParticlePopulation<P>> childrenPopulations)
       {
-        final int currentNWorkers = context.dc.cluster.getCluster().getMembers().size();
-        final long iterationTime = timer.getTime();
-        output.printWrite("timing", 
-            "node", context.currentNode,
-            "ESS", populationBeforeResampling.getESS(),
-            "rESS", populationBeforeResampling.getRelativeESS(),
-            "logZ", populationBeforeResampling.logNormEstimate(),
-            "nWorkers", currentNWorkers, 
-            "iterationProposalTime", iterationTime, 
-            "globalTime", globalTime.getTime());
-        output.flush();
-        
-        if (context.tree().getRoot().equals(context.currentNode))
-          BriefIO.write(Results.getFileInResultFolder("logZ"), "" + populationBeforeResampling.logNormEstimate());
+        records.add(new Record(
+            context.currentNode,
+            populationBeforeResampling.nParticles(),
+            populationBeforeResampling.getESS(),
+            populationBeforeResampling.getRelativeESS(),
+            populationBeforeResampling.logNormEstimate(),
+            context.nWorkers(),
+            timer.getTime(),
+            globalTime.getTime(),
+            context.tree().getRoot().equals(context.currentNode)));
       }
     };
   }
-  
+
   public void close()
   {
-    BriefIO.write(Results.getFileInResultFolder("workTime"), "" + globalTime.getTime());
+    if (writer != null)
+    {
+      records.add(END);
+      try
+      {
+        writer.join();
+      }
+      catch (InterruptedException e)
+      {
+        throw new RuntimeException(e);
+      }
+    }
+    if (folder != null)
+      BriefIO.write(new File(folder, "workTime"), "" + globalTime.getTime());
+  }
+
+  private static final long FLUSH_INTERVAL_MILLIS = 1000;
+
+  private void write()
+  {
+    final List<Record> batch = new ArrayList<>();
+    long lastFlush = System.currentTimeMillis();
+    boolean dirty = false;
+    while (true)
+    {
+      try
+      {
+        final Record first = records.poll(FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        if (first != null)
+        {
+          batch.add(first);
+          records.drainTo(batch);
+        }
+      }
+      catch (InterruptedException e)
+      {
+        return;
+      }
+      boolean done = false;
+      for (Record record : batch)
+        if (record == END)
+          done = true;
+        else
+          record.write(output, folder);
+      dirty = dirty || !batch.isEmpty();
+      if (dirty && (done || System.currentTimeMillis() - lastFlush >= FLUSH_INTERVAL_MILLIS))
+      {
+        output.flush();
+        lastFlush = System.currentTimeMillis();
+        dirty = false;
+      }
+      batch.clear();
+      if (done)
+        return;
+    }
   }
 
+  private static final Record END = new Record(null, 0, 0, 0, 0, 0, 0, 0, false);
+
+  private static final class Record
+  {
+    private final Object node;
+    private final int nParticles;
+    private final double ess;
+    private final double relativeEss;
+    private final double logZ;
+    private final int nWorkers;
+    private final long iterationProposalTime;
+    private final long globalTime;
+    private final boolean isRoot;
+
+    Record(Object node, int nParticles, double ess, double relativeEss, double logZ, int nWorkers,
+        long iterationProposalTime, long globalTime, boolean isRoot)
+    {
+      this.node = node;
+      this.nParticles = nParticles;
+      this.ess = ess;
+      this.relativeEss = relativeEss;
+      this.logZ = logZ;
+      this.nWorkers = nWorkers;
+      this.iterationProposalTime = iterationProposalTime;
+      this.globalTime = globalTime;
+      this.isRoot = isRoot;
+    }
+
+    void write(OutputManager output, File folder)
+    {
+      output.printWrite("timing",
+          "node", node,
+          "nParticles", nParticles,
+          "ESS", ess,
+          "rESS", relativeEss,
+          "logZ", logZ,
+          "nWorkers", nWorkers,
+          "iterationProposalTime", iterationProposalTime,
+          "globalTime", globalTime);
+      if (isRoot)
+        BriefIO.write(new File(folder, "logZ"), "" + logZ);
+    }
+  }
 }
@@ -1,184 +1,523 @@
 package dc;
 
 import java.io.File;
+import java.io.PrintWriter;
+import java.io.Serializable;
+import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
+import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
 
 import org.apache.commons.lang3.builder.HashCodeBuilder;
-import org.apache.commons.lang3.time.StopWatch;
+import org.apache.commons.lang3.builder.ReflectionToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
 
 import bayonet.graphs.DirectedTree;
 import bayonet.smc.ParticlePopulation;
+import briefj.OutputManager;
 import briefj.repo.RepositoryUtils;
 import briefj.repo.VersionControlRepository;
 
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.hazelcast.config.Config;
 import com.hazelcast.config.ExecutorConfig;
+import com.hazelcast.config.JoinConfig;
 import com.hazelcast.config.MapConfig;
+import com.hazelcast.config.SerializationConfig;
+import com.hazelcast.config.SerializerConfig;
+import com.hazelcast.core.ExecutionCallback;
 import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.IAtomicLong;
 import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IExecutorService;
+import com.hazelcast.core.IMap;
+import com.hazelcast.core.Member;
+import com.hazelcast.core.MemberAttributeEvent;
+import com.hazelcast.core.MemberLeftException;
+import com.hazelcast.core.MemberSelector;
+import com.hazelcast.core.MembershipEvent;
+import com.hazelcast.core.MembershipListener;
+import com.hazelcast.map.listener.EntryAddedListener;
+import com.hazelcast.map.listener.EntryRemovedListener;
+import com.hazelcast.nio.serialization.StreamSerializer;
+import com.hazelcast.spi.exception.TargetNotMemberException;
 
 
 
-public final class DistributedDC<P, N>
+public final class DistributedDC<P, N> extends AbstractDC<P, N>
 {
-  final DCOptions options;
-  final DCProposalFactory<P, N> proposalFactory;
-  final DirectedTree<N> tree;
-  final List<DCProcessorFactory<P, N>> processorFactories = new ArrayList<>();
-  
   HazelcastInstance cluster;
-  Map<N, ParticlePopulation<P>> populations;
-  Map<N, Integer> numberOfUnprocessedChildren;
-  Map<String,Boolean> clusterStatus;
-  Lock nucLock; // lock for numberOfUnprocessedChildren
-  ExecutorService executor;
+  IMap<PopulationKey<N>, ParticlePopulation<P>> populations; // co-partitioned by parent, see PopulationKey
+  IMap<N, HashSet<N>> unprocessedChildren; // children whose population is not stored yet, updated atomically, see DCRecursionTask
+  IMap<N, String> runningTasks; // uuid of the member each submitted task was sent to, removed once done (except the root's), see recover()
+  IMap<String,String> clusterStatus; // see SETUP_COMPLETE and FAILURE
+  IExecutorService executor;
+  private IAtomicLong nMembersInRun; // decremented when a member leaves the run, see monitor()
+  Checkpoints<P, N> checkpoints; // null unless DCOptions.checkpointDirectory is set
+  CriticalPathScheduler<N> scheduler; // null unless DCOptions.criticalPathScheduling or memoryBudgetMB is set
+  MemoryBudget<N> memoryBudget; // null unless DCOptions.memoryBudgetMB is set
+  final DCMetrics metrics;
   
-  /*
-   * TODO:
-   *  - recovery of the task if one of the nodes crashes 
-   *  - move towards EntryProcessor to avoid shuffling data? add locality ('near cache?') ?
+  /**
+   * Identifies this run among those sharing the cluster. Members started with the same options, 
+   * proposal factory and data cooperate on the same run.
    */
+  final String runId;
   
-  private boolean started = false;
-  private boolean initializing = false;
+  /**
+   * The run id without the data, identifying the checkpoints which can be reused, see Checkpoints.
+   */
+  private final String runKey;
+  private final Map<N, Long> subtreeDataHashes = new HashMap<>();
   
   /*
-   * Implementation note: we use a singleton so that multiple threads do not each create copies 
-   * of the populations. This has the limitation explained in the exception thrown by 
-   * createInstance() (see below).
+   * Implementation note: tasks find their run through this registry, so that multiple threads 
+   * do not each create copies of the populations. Runs in progress in this JVM share one 
+   * Hazelcast member per cluster name (see createClusterName()), created by the first run and 
+   * shut down when the last one completes.
    */
   @SuppressWarnings("rawtypes")
-  private static DistributedDC instance = null;
+  private static final Map<String, DistributedDC> instances = new ConcurrentHashMap<>();
+  private static final Map<String, SharedMember> sharedMembers = new HashMap<>(); // by cluster name
+  private String clusterName;
   
-  @SuppressWarnings("unchecked")
+  /**
+   * Several runs can be in progress at the same time in one JVM, as long as they differ in their 
+   * options (e.g. masterRandomSeed or clusterSubGroup) or proposal factory. Runs with the same 
+   * compactSerialization and compressPopulations options share a member, and should then also 
+   * have the same tcpIpMembers and serializers (see addSerializer(..)).
+   */
   public static <P,N> DistributedDC<P,N> createInstance(
       DCOptions options, 
       DCProposalFactory<P, N> proposalFactory, 
       DirectedTree<N> tree)
   {
-    if (instance != null)
-      throw new RuntimeException("Limitation: the current implementation supports only one "
-          + "distributed DC computation at any given time in one JVM. Note that this DC "
-          + "computation can be multi-threaded (see DCOptions), however you could not say "
-          + "start two parallel DC computation on different trees. ");
-    instance = new DistributedDC<P,N>(options, proposalFactory, tree);
-    return instance;
+    final DistributedDC<P,N> result = new DistributedDC<P,N>(options, proposalFactory, tree);
+    if (instances.putIfAbsent(result.runId, result) != null)
+      throw new RuntimeException("An identical run is already in progress in this JVM, use a different "
+          + "clusterSubGroup to run it again concurrently.");
+    return result;
   }
   
-  public void addProcessorFactory(DCProcessorFactory<P, N> factory)
+  /**
+   * @return The run in progress in this JVM, if there is exactly one.
+   */
+  @SuppressWarnings("unchecked")
+  public static <P,N> DistributedDC<P,N> getInstance()
   {
-    this.processorFactories.add(factory);
+    if (instances.size() != 1)
+      throw new RuntimeException("Use createInstance(..) first, and getInstance(runId) if several runs are in progress.");
+    return getInstance(instances.keySet().iterator().next());
   }
   
   @SuppressWarnings("unchecked")
-  public static <P,N> DistributedDC<P,N> getInstance()
+  static <P,N> DistributedDC<P,N> getInstance(String runId)
   {
+    final DistributedDC<P,N> instance = instances.get(runId);
+    // NB: tasks are only sent to a member once it is initialized (see runMemberSelector)
     if (instance == null)
-      throw new RuntimeException("Use createInstance(..) first.");
-    while (instance.initializing)
-      sleep();
+      throw new RuntimeException("Run not in progress in this JVM: " + runId);
     return instance;
   }
   
-  public void start()
+  /**
+   * Joins the cluster and waits for the other members in a separate thread. The returned future completes 
+   * when the root population is available, as signaled by a listener on the population map, or 
+   * exceptionally when a task of the run failed on any member (see reportFailure(..)).
+   */
+  @Override
+  public CompletableFuture<ParticlePopulation<P>> startAsync()
   {
     checkNotAlreadyStarted();
-    setup();
-    monitor();
+    final CompletableFuture<ParticlePopulation<P>> result = new CompletableFuture<>();
+    new Thread(() -> 
+    {
+      try
+      {
+        setup();
+        monitor();
+        result.complete(getRootPopulation());
+      }
+      catch (Throwable t)
+      {
+        instances.remove(runId);
+        releaseCluster(); // if setup() failed, e.g. on waitForEnoughWorkers()
+        result.completeExceptionally(t);
+      }
+    }, "DistributedDC-" + runId).start();
+    return result;
   }
   
-  private ParticlePopulation<P> rootPopulation = null;
-  private void monitor()
+  private final CountDownLatch rootAvailableOrFailed = new CountDownLatch(1);
+  private volatile String failure = null;
+  private String rootListenerId;
+  private String failureListenerId;
+  
+  private void monitor() throws InterruptedException
   {
-    while (!populations.containsKey(tree.getRoot()))
-      sleep();
-    for (DCProcessorFactory<P, N> factory : processorFactories)
-      factory.close();
+    rootAvailableOrFailed.await();
     // for convenience, save the root population locally
-    rootPopulation = populations.get(tree.getRoot());
-    cluster.shutdown(); // NB: this makes populations.get(.) inactive
-    instance = null;
+    finish(failure == null ? populations.get(populationKey(tree.getRoot())) : null);
+    populations.removeEntryListener(rootListenerId);
+    clusterStatus.removeEntryListener(failureListenerId);
+    cluster.getCluster().removeMembershipListener(membershipListenerId);
+    if (checkpoints != null)
+      checkpoints.close();
+    if (scheduler != null)
+      scheduler.close();
+    if (memoryBudget != null)
+      populations.removeEntryListener(memoryListenerId);
+    metrics.close();
+    synchronized (this) 
+    {
+      if (codecOutput != null)
+        codecOutput.close();
+    }
+    cluster.getCluster().getLocalMember().removeAttribute(runAttribute());
+    if (nMembersInRun.decrementAndGet() == 0) 
+      destroyRunObjects(); // NB: the other members of the run already have their copy of the root
+    cluster.getConfig().getExecutorConfigs().remove(EXECUTOR_NAME + runId);
+    instances.remove(runId);
+    releaseCluster(); // NB: this can make populations.get(.) inactive
+    if (failure != null)
+      throw new RuntimeException("Run " + runId + " failed: " + failure);
+  }
+  
+  /**
+   * Signals to all the members of the run that a task failed, so that they stop waiting for the root.
+   * Only the first failure is kept.
+   */
+  void reportFailure(N node, Throwable t)
+  {
+    final StringWriter stackTrace = new StringWriter();
+    t.printStackTrace(new PrintWriter(stackTrace));
+    clusterStatus.putIfAbsent(FAILURE, 
+        "task of node " + node + " on member " + cluster.getCluster().getLocalMember() + "\n" + stackTrace);
+  }
+  
+  /**
+   * Frees the cluster-wide maps and executor of this run, once all its members are done.
+   */
+  private void destroyRunObjects()
+  {
+    clusterStatus.destroy();
+    populations.destroy();
+    unprocessedChildren.destroy();
+    runningTasks.destroy();
+    cluster.getMap(METRICS_MAP_NAME + runId).destroy();
+    executor.destroy();
+    cluster.getLock(SETUP_LOCK_NAME + runId).destroy();
+    nMembersInRun.destroy();
+  }
+  
+  /**
+   * @return The metrics of this run on this member, see DCMetrics.
+   */
+  public DCMetrics getMetrics()
+  {
+    return metrics;
+  }
+  
+  /**
+   * Adds a listener called with the metrics of the run every DCOptions.metricsIntervalSeconds, and at the end.
+   */
+  public void addProgressListener(DCProgressListener listener)
+  {
+    metrics.addProgressListener(listener);
+  }
+  
+  /**
+   * Registers a Hazelcast serializer for a particle type or one of its components, used when 
+   * DCOptions.compactSerialization is set. Should be called before start(). Runs sharing a 
+   * member (see createInstance(..)) should register the same serializers.
+   */
+  public <T> void addSerializer(Class<T> type, StreamSerializer<T> serializer)
+  {
+    serializers.add(new SerializerConfig().setTypeClass(type).setImplementation(serializer));
+  }
+  
+  private final List<SerializerConfig> serializers = new ArrayList<>();
+  
+  private OutputManager codecOutput = null;
+  
+  /**
+   * Records the sizes and times of the compression of a node's population, or of the decompression of 
+   * its children populations, see DCOptions.compressPopulations.
+   */
+  synchronized void reportCodecStats(N node, String operation, PopulationCodecStats stats)
+  {
+    if (codecOutput == null)
+    {
+      codecOutput = new OutputManager();
+      codecOutput.setOutputFolder(outputFolder());
+    }
+    codecOutput.write("compression", 
+        "node", node, 
+        "operation", operation,
+        "rawBytes", stats.rawBytes,
+        "compressedBytes", stats.encodedBytes,
+        "ratio", stats.compressionRatio(),
+        "codecTime", stats.codecNanos / 1_000_000);
+    codecOutput.flush();
+  }
+  
+  @Override
+  int nWorkers()
+  {
+    return nRunMembers;
+  }
+  
+  private volatile int nRunMembers = 0; // cached, since processors ask for it at every node
+  private final Object membershipChanged = new Object();
+  private String membershipListenerId;
+  
+  private void refreshRunMembers()
+  {
+    synchronized (membershipChanged)
+    {
+      nRunMembers = runMembers().size();
+      membershipChanged.notifyAll();
+    }
   }
   
-  public ParticlePopulation<P> getRootPopulation() 
+  /**
+   * @return The cluster members taking part in this run.
+   */
+  private List<Member> runMembers()
   {
-    return rootPopulation;
+    final List<Member> result = new ArrayList<>();
+    for (Member member : cluster.getCluster().getMembers())
+      if (runMemberSelector.select(member))
+        result.add(member);
+    return result;
+  }
+  
+  private final MemberSelector runMemberSelector = member -> Boolean.TRUE.equals(member.getBooleanAttribute(runAttribute()));
+  
+  private String runAttribute()
+  {
+    return "RUN-" + runId;
   }
 
-  private void setup()
+  private void setup() throws InterruptedException
   {
     initHazelcast();
     waitForEnoughWorkers();
-    Lock lock = cluster.getLock("SETUP_LOCK");
+    Lock lock = cluster.getLock(SETUP_LOCK_NAME + runId);
     lock.lock();
-    // if this was not already done by some other node
-    if (!clusterStatus.containsKey(SETUP_COMPLETE))
+    try
+    {
+      // if this was not already done by some other node
+      if (!clusterStatus.containsKey(SETUP_COMPLETE))
+      {
+        // setup unprocessedChildren
+        for (N node : tree.getNodes())
+          unprocessedChildren.put(node, new HashSet<>(tree.getChildren(node)));
+        
+        // setup basic tasks
+        for (List<DCRecursionTask<P,N>> initialTasks : initialTasks())
+          submitTasks(initialTasks);
+        
+        clusterStatus.put(SETUP_COMPLETE, "true");
+      } 
+    }
+    finally
     {
-      // setup numberOfUnprocessedChildren
-      for (N node : tree.getNodes())
-        numberOfUnprocessedChildren.put(node, tree.getChildren(node).size());
-      
-      // setup basic tasks
-      for (DCRecursionTask<P,N> initialTask : initialTasks())
-        submitTask(initialTask);
-      
-      clusterStatus.put(SETUP_COMPLETE, true);
-    } 
-    lock.unlock();
+      lock.unlock();
+    }
   }
   
-  private void waitForEnoughWorkers()
+  private void waitForEnoughWorkers() throws InterruptedException
   {
-    StopWatch stopWatch = new StopWatch();
-    stopWatch.start();
-    while (
-        cluster.getCluster().getMembers().size() < options.minimumNumberOfClusterMembersToStart &&
-        stopWatch.getTime()/1000/60 < options.maximumTimeToWaitInMinutes)
-      sleep();
+    final long deadline = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(options.maximumTimeToWaitInMinutes);
+    synchronized (membershipChanged)
+    {
+      long remaining;
+      while (
+          nWorkers() < options.minimumNumberOfClusterMembersToStart &&
+          (remaining = deadline - System.currentTimeMillis()) > 0)
+        membershipChanged.wait(remaining); // see refreshRunMembers()
+    }
   }
 
   private void initHazelcast()
   {
-    this.initializing = true;
-    this.cluster = Hazelcast.newHazelcastInstance(getConfig());
+    this.clusterName = createClusterName();
+    this.cluster = acquireSharedCluster(clusterName, sharedConfigDescription(), this::getConfig);
+    clusterAcquired = true;
     { 
-      this.clusterStatus = cluster.getMap("CLUSTER_STATUS");
-      this.populations = cluster.getMap(POPULATION_MAP_NAME);
-      this.numberOfUnprocessedChildren = cluster.getMap("N_UNPROCESSED");
-      this.nucLock = cluster.getLock("NUC_LOCK");
-      this.executor = cluster.getExecutorService("EXECUTOR");  
+      this.clusterStatus = cluster.getMap("CLUSTER_STATUS-" + runId);
+      this.populations = cluster.getMap(POPULATION_MAP_NAME + runId);
+      this.unprocessedChildren = cluster.getMap("UNPROCESSED-" + runId);
+      this.runningTasks = cluster.getMap("RUNNING_TASKS-" + runId);
+      this.nMembersInRun = cluster.getAtomicLong("N_MEMBERS-" + runId);
+      // each run's executor gets its own threads, also when the member is shared
+      cluster.getConfig().addExecutorConfig(new ExecutorConfig(EXECUTOR_NAME + runId, options.nThreadsPerNode));
+      this.executor = cluster.getExecutorService(EXECUTOR_NAME + runId);  
+    }
+    rootListenerId = populations.addEntryListener(
+        (EntryAddedListener<PopulationKey<N>, ParticlePopulation<P>>) event -> rootAvailableOrFailed.countDown(), 
+        populationKey(tree.getRoot()), false);
+    if (populations.containsKey(populationKey(tree.getRoot()))) // in case the other members completed before we joined
+      rootAvailableOrFailed.countDown();
+    failureListenerId = clusterStatus.addEntryListener(
+        (EntryAddedListener<String, String>) event -> failed(event.getValue()), FAILURE, true);
+    if (clusterStatus.containsKey(FAILURE))
+      failed(clusterStatus.get(FAILURE));
+    membershipListenerId = cluster.getCluster().addMembershipListener(new MembershipListener() {
+      @Override public void memberAdded(MembershipEvent event) { refreshRunMembers(); }
+      @Override public void memberAttributeChanged(MemberAttributeEvent event) { refreshRunMembers(); } // see runMembers()
+      @Override
+      public void memberRemoved(MembershipEvent event)
+      {
+        refreshRunMembers();
+        // the oldest remaining member of the run takes care of the recovery, outside of the event thread
+        final List<Member> members = runMembers();
+        if (!members.isEmpty() && members.get(0).localMember() && runMemberSelector.select(event.getMember()))
+        {
+          nMembersInRun.decrementAndGet(); // since the lost member cannot do it, see monitor()
+          CompletableFuture.runAsync(() -> recover(event.getMember().getUuid()));
+        }
+      }
+    });
+    if (options.checkpointDirectory != null)
+      checkpoints = new Checkpoints<>(options.checkpointDirectory, runKey, subtreeDataHashes::get);
+    if (options.criticalPathScheduling || options.memoryBudgetMB > 0)
+      scheduler = new CriticalPathScheduler<>(tree, TaskPartitioner.modelCosts(tree, options.nParticles), options.nThreadsPerNode);
+    if (options.memoryBudgetMB > 0)
+    {
+      memoryBudget = new MemoryBudget<>(tree, options.memoryBudgetMB * 1024L * 1024L, 
+          options.adaptiveNParticles ? options.maxNParticles : options.nParticles, populations, 
+          node -> unprocessedChildren.get(node).size());
+      memoryListenerId = populations.addLocalEntryListener(
+          (EntryRemovedListener<PopulationKey<N>, ParticlePopulation<P>>) event -> memoryBudget.release());
     }
-    this.initializing  = false;
+    metrics.startReporting(
+        cluster.getCluster().getLocalMember().getUuid(), 
+        cluster.getMap(METRICS_MAP_NAME + runId), 
+        () -> executor.getLocalExecutorStats().getPendingTaskCount() + 
+          (scheduler == null ? 0 : scheduler.nQueued()) + 
+          (memoryBudget == null ? 0 : memoryBudget.nWaiting()), 
+        () -> populations.getLocalMapStats().getOwnedEntryCount(), 
+        () -> populations.getLocalMapStats().getOwnedEntryMemoryCost(), 
+        options.metricsIntervalSeconds);
+    createProposalPool();
+    // from now on, tasks of this run can be sent to this member
+    nMembersInRun.incrementAndGet();
+    cluster.getCluster().getLocalMember().setBooleanAttribute(runAttribute(), true);
+    refreshRunMembers();
   }
 
-  private List<DCRecursionTask<P,N>> initialTasks()
+  private String memoryListenerId;
+  
+  private void failed(String failure)
   {
-    List<DCRecursionTask<P,N>> result = new ArrayList<>();
-    populateInitialTasks(result, tree.getRoot(), options.maximumDistributionDepth);
+    this.failure = failure;
+    rootAvailableOrFailed.countDown();
+  }
+  
+  /**
+   * Resubmits the tasks that were sent to a member that left the cluster. The populations lost with 
+   * the member are recovered by the tasks needing them (see DCRecursionTask). 
+   */
+  void recover(String lostMemberUuid)
+  {
+    // NB: tasks whose submission fails because the member left are also resubmitted, see submitTasks()
+    for (Map.Entry<N, String> entry : runningTasks.entrySet())
+      if (lostMemberUuid.equals(entry.getValue()))
+        // NB: the children of a task computing a whole subtree are not in the cluster, so 
+        // they are then recovered, i.e. recomputed, the same way
+        submitTask(new DCRecursionTask<P,N>(runId, entry.getKey(), !tree.isLeaf(entry.getKey())));
+  }
+
+  /**
+   * The groups of tasks to start with, skipping the subtrees whose root population was checkpointed by a 
+   * previous run (see DCOptions.checkpointDirectory).
+   */
+  private List<List<DCRecursionTask<P,N>>> initialTasks()
+  {
+    final TaskPartitioner<N> partitioner = options.costBasedPartitioning ? 
+        new TaskPartitioner<>(tree, nodeCosts(), options.nTasksPerThread * options.nThreadsPerNode * nWorkers()) : 
+        null;
+    final List<List<DCRecursionTask<P,N>>> result = new ArrayList<>();
+    final List<N> taskRoots = new ArrayList<>();
+    populateInitialTasks(result, taskRoots, tree.getRoot(), options.maximumDistributionDepth, partitioner);
+    addTaskGroups(result, taskRoots, partitioner);
     return result;
   }
+  
+  private ToDoubleFunction<N> nodeCosts()
+  {
+    return options.pilotNParticles > 0 ? 
+        TaskPartitioner.pilotCosts(options, proposalFactory, tree) : 
+        TaskPartitioner.modelCosts(tree, options.nParticles);
+  }
 
-  private void populateInitialTasks(
-      List<DCRecursionTask<P, N>> result, // mod in place 
+  /**
+   * @param siblingTaskRoots Where the node is added if it is computed with its subtree (mod in place)
+   * @param partitioner Decides which nodes are computed with their subtree, or null to use maximumDistributionDepth
+   * @return If the node's population was restored from a checkpoint.
+   */
+  private boolean populateInitialTasks(
+      List<List<DCRecursionTask<P, N>>> result, // mod in place 
+      List<N> siblingTaskRoots,
       final N node,
-      final int maximumDistributionDepth)
+      final int maximumDistributionDepth,
+      final TaskPartitioner<N> partitioner)
   {
-    if (tree.isLeaf(node) || maximumDistributionDepth == 0)
-      result.add(new DCRecursionTask<P,N>(node, false));
-    else
-      for (N childrenNode : tree.getChildren(node))
-        populateInitialTasks(result, childrenNode, maximumDistributionDepth - 1);
+    final ParticlePopulation<P> checkpointed = checkpoints == null ? null : checkpoints.load(node);
+    if (checkpointed != null)
+    {
+      populations.set(populationKey(node), checkpointed);
+      return true;
+    }
+    if (partitioner == null ? tree.isLeaf(node) || maximumDistributionDepth == 0 : partitioner.isTaskRoot(node))
+    {
+      siblingTaskRoots.add(node);
+      return false;
+    }
+    final HashSet<N> unprocessed = new HashSet<>();
+    final List<N> childrenTaskRoots = new ArrayList<>();
+    for (N childrenNode : tree.getChildren(node))
+      if (!populateInitialTasks(result, childrenTaskRoots, childrenNode, maximumDistributionDepth - 1, partitioner))
+        unprocessed.add(childrenNode);
+    addTaskGroups(result, childrenTaskRoots, partitioner);
+    unprocessedChildren.put(node, unprocessed);
+    if (unprocessed.isEmpty())
+      result.add(Collections.singletonList(new DCRecursionTask<P,N>(runId, node, true)));
+    return false;
   }
-
-  private void checkNotAlreadyStarted()
+  
+  private void addTaskGroups(
+      List<List<DCRecursionTask<P, N>>> result, // mod in place 
+      List<N> siblingTaskRoots, 
+      TaskPartitioner<N> partitioner)
   {
-    if (started)
-      throw new RuntimeException();
-    started = true;
+    if (partitioner == null)
+    {
+      for (N taskRoot : siblingTaskRoots)
+        result.add(Collections.singletonList(new DCRecursionTask<P,N>(runId, taskRoot, false)));
+      return;
+    }
+    for (List<N> group : partitioner.group(siblingTaskRoots))
+    {
+      final List<DCRecursionTask<P, N>> tasks = new ArrayList<>();
+      for (N taskRoot : group)
+        tasks.add(new DCRecursionTask<P,N>(runId, taskRoot, false));
+      result.add(tasks);
+    }
   }
 
   private DistributedDC(
@@ -186,19 +525,110 @@ public final class DistributedDC<P, N>
       final DCProposalFactory<P, N> proposalFactory, 
       final DirectedTree<N> tree)
   {
-    this.options = options;
-    this.proposalFactory = proposalFactory;
-    this.tree = tree;
-    // add a default processor
-    this.processorFactories.add(new DefaultProcessorFactory<P,N>());
+    super(options, proposalFactory, tree);
+    if (options.checkpointDirectory != null && options.outOfCoreDirectory != null)
+      throw new RuntimeException("Populations stored out of core cannot be checkpointed");
+    this.runKey = createRunKey();
+    this.runId = runKey + ",hash(data)=" + Long.toHexString(computeSubtreeDataHashes(tree.getRoot()));
+    this.metrics = new DCMetrics(runId, tree.getNodes().size(), this::outputFolder);
+  }
+  
+  private boolean clusterAcquired = false; // accessed by the thread of startAsync() only
+  
+  /**
+   * Releases this run's reference to the shared member, if not already done.
+   */
+  private void releaseCluster()
+  {
+    if (!clusterAcquired)
+      return;
+    clusterAcquired = false;
+    releaseSharedCluster(clusterName);
+  }
+  
+  private static synchronized HazelcastInstance acquireSharedCluster(
+      String clusterName, 
+      String configDescription, 
+      Supplier<Config> config)
+  {
+    SharedMember shared = sharedMembers.get(clusterName);
+    if (shared == null)
+      sharedMembers.put(clusterName, shared = new SharedMember(Hazelcast.newHazelcastInstance(config.get()), configDescription));
+    else if (!shared.configDescription.equals(configDescription))
+      throw new RuntimeException("A run in progress in this JVM uses the member of cluster " + clusterName + 
+          " with an incompatible configuration: " + shared.configDescription + " instead of " + configDescription);
+    shared.nRuns++;
+    return shared.instance;
+  }
+  
+  private static synchronized void releaseSharedCluster(String clusterName)
+  {
+    final SharedMember shared = sharedMembers.get(clusterName);
+    if (--shared.nRuns == 0)
+    {
+      shared.instance.shutdown();
+      sharedMembers.remove(clusterName);
+    }
+  }
+  
+  private static final class SharedMember
+  {
+    private final HazelcastInstance instance;
+    private final String configDescription;
+    private int nRuns = 0;
+    
+    SharedMember(HazelcastInstance instance, String configDescription)
+    {
+      this.instance = instance;
+      this.configDescription = configDescription;
+    }
+  }
+  
+  /**
+   * @return The parts of getConfig() which cannot differ between runs sharing a member, besides the cluster name.
+   */
+  private String sharedConfigDescription()
+  {
+    final List<String> serializerTypes = new ArrayList<>();
+    if (options.compactSerialization)
+      for (SerializerConfig serializer : serializers)
+        serializerTypes.add(serializer.getTypeClass().getName() + "=" + serializer.getImplementation().getClass().getName());
+    return "tcpIpMembers=" + options.tcpIpMembers + ",port=" + options.port + ",serializers=" + serializerTypes;
+  }
+  
+  /**
+   * @return A digest (SHA-256, truncated) of the data of the node's subtree, see DCProposalFactory.dataHash. 
+   *   Unlike a sum, it changes when data is swapped between nodes.
+   */
+  private long computeSubtreeDataHashes(N node)
+  {
+    final List<long[]> children = new ArrayList<>();
+    for (N child : tree.getChildren(node))
+      children.add(new long[]{child.hashCode(), computeSubtreeDataHashes(child)});
+    // NB: sorted, so independent of the order of the children
+    children.sort(Comparator.<long[]>comparingLong(child -> child[0]).thenComparingLong(child -> child[1]));
+    final Hasher hasher = Hashing.sha256().newHasher().putLong(proposalFactory.dataHash(node));
+    for (long[] child : children)
+      hasher.putLong(child[0]).putLong(child[1]);
+    final long result = hasher.hash().asLong();
+    subtreeDataHashes.put(node, result);
+    return result;
+  }
+  
+  private String createRunKey()
+  {
+    // NB: hashing the string form of the options, since the hash codes of enums differ between JVMs
+    final String optionsString = new ReflectionToStringBuilder(options, ToStringStyle.SHORT_PREFIX_STYLE)
+      .setExcludeFieldNames(DCOptions.INDEX_IN_CLUSTER_FIELD_NAME, DCOptions.PORT_FIELD_NAME).toString();
+    return 
+      "hash(options)=" + optionsString.hashCode() + "," +
+      "hash(" +proposalFactory.getClass().getName() + ")=" + HashCodeBuilder.reflectionHashCode(proposalFactory);
   }
   
   private String createClusterName()
   {
-    return "Cluster{" + 
-      codeVersion() + 
-      "hash(options)=" + HashCodeBuilder.reflectionHashCode(options, DCOptions.INDEX_IN_CLUSTER_FIELD_NAME) + "," +
-      "hash(" +proposalFactory.getClass().getName() + ")=" + HashCodeBuilder.reflectionHashCode(proposalFactory) + "}";
+    return "Cluster{" + codeVersion() + "compactSerialization=" + options.compactSerialization + "," + 
+      "compressPopulations=" + options.compressPopulations + "}";
   }
   
   private String codeVersion()
@@ -215,36 +645,140 @@ public final class DistributedDC<P, N>
   private Config getConfig()
   {
     Config result = new Config();
-    String clusterName = createClusterName();
     result.getGroupConfig().setName(clusterName);
     
-    // set n threads in executors
-    ExecutorConfig ecfg = new ExecutorConfig();
-    ecfg.setPoolSize(options.nThreadsPerNode);
-    result.addExecutorConfig(ecfg);
+    if (options.tcpIpMembers != null)
+    {
+      final JoinConfig join = result.getNetworkConfig().getJoin();
+      join.getMulticastConfig().setEnabled(false);
+      join.getTcpIpConfig().setEnabled(true);
+      for (String member : options.tcpIpMembers.split(","))
+        join.getTcpIpConfig().addMember(member.trim());
+    }
+    if (options.port > 0)
+      result.getNetworkConfig().setPort(options.port).setPortAutoIncrement(false);
     
-    // disable map back up
+    // disable map back up (lost populations are recomputed or read from checkpoints, see recover())
     MapConfig mc = new MapConfig();
-    mc.setName(POPULATION_MAP_NAME);
+    mc.setName(POPULATION_MAP_NAME + "*");
     mc.setBackupCount(0);
     result.addMapConfig(mc);
     
+    final SerializationConfig encoding = new SerializationConfig();
+    if (options.compactSerialization)
+    {
+      encoding.addSerializerConfig(
+          new SerializerConfig().setTypeClass(ParticlePopulation.class).setImplementation(new PopulationSerializer()));
+      for (SerializerConfig serializer : serializers)
+        encoding.addSerializerConfig(serializer);
+    }
+    if (options.compressPopulations)
+      result.getSerializationConfig().addSerializerConfig(
+          new SerializerConfig().setTypeClass(ParticlePopulation.class).setImplementation(new CompressedPopulationSerializer(encoding)));
+    else
+    {
+      result.getSerializationConfig().addSerializerConfig(
+          new SerializerConfig().setTypeClass(ParticlePopulation.class).setImplementation(new MeasuredPopulationSerializer(options.compactSerialization)));
+      if (options.compactSerialization)
+        for (SerializerConfig serializer : serializers)
+          result.getSerializationConfig().addSerializerConfig(serializer);
+    }
+    
     return result;
   }
 
+  PopulationKey<N> populationKey(N node)
+  {
+    return new PopulationKey<>(node, tree.getParent(node));
+  }
+
+  /**
+   * Sends the task to the member owning the partition where the populations of the task node's children 
+   * are stored (see PopulationKey), or to another member of the run if that owner does not take part in it.
+   * The member is recorded until the task is done, see recover().
+   */
   void submitTask(DCRecursionTask<P,N> dcRecursionTask)
   {
-    executor.submit(dcRecursionTask);
+    submitTasks(Collections.singletonList(dcRecursionTask));
+  }
+  
+  /**
+   * Sends the tasks to be run one after the other by the same member, chosen as in submitTask(..) 
+   * for the first one.
+   */
+  void submitTasks(List<DCRecursionTask<P,N>> tasks)
+  {
+    final N node = tasks.get(0).currentNode;
+    Member member = cluster.getPartitionService().getPartition(PopulationKey.partitionKey(node)).getOwner();
+    if (member == null || !runMemberSelector.select(member))
+    {
+      final List<Member> members = runMembers();
+      member = members.get(Math.floorMod(node.hashCode(), members.size()));
+    }
+    final String memberUuid = member.getUuid();
+    for (DCRecursionTask<P,N> task : tasks)
+    {
+      runningTasks.set(task.currentNode, memberUuid);
+      metrics.taskSubmitted();
+    }
+    // NB: not executeOnMember(..), which now and then waits for the task to complete (as back-pressure), a 
+    // deadlock when called by a task of the run and the member has a single thread for the run
+    executor.submitToMember(tasks.size() == 1 ? tasks.get(0) : new TaskGroup<>(tasks), member, new ExecutionCallback<Object>()
+    {
+      @Override public void onResponse(Object response) {}
+      @Override 
+      public void onFailure(Throwable t)
+      {
+        if (t instanceof MemberLeftException || t instanceof TargetNotMemberException)
+          // recover() misses these tasks if it scanned runningTasks before they were set
+          CompletableFuture.runAsync(() -> resubmitLost(tasks, memberUuid));
+        else
+          reportFailure(node, t);
+      }
+    });
   }
   
-  private static final long sleepTimeMillis = 100;
-  private static void sleep()
+  /**
+   * Resubmits those of the given tasks still assigned to the lost member, i.e. not already resubmitted by 
+   * recover() (nor completed, as their entries are then removed).
+   */
+  private void resubmitLost(List<DCRecursionTask<P,N>> tasks, String lostMemberUuid)
   {
-    try { Thread.sleep(sleepTimeMillis); }
-    catch (Exception e) {}
+    final List<DCRecursionTask<P,N>> lost = new ArrayList<>();
+    for (DCRecursionTask<P,N> task : tasks)
+      if (lostMemberUuid.equals(runningTasks.get(task.currentNode)))
+        lost.add(task);
+    if (!lost.isEmpty())
+      submitTasks(lost);
+  }
+
+  
+  /**
+   * Tasks sent together to amortize the scheduling overhead, see DCOptions.costBasedPartitioning.
+   */
+  private static final class TaskGroup<P,N> implements Runnable, Serializable
+  {
+    private static final long serialVersionUID = 1L;
+    private final List<DCRecursionTask<P,N>> tasks;
+    
+    TaskGroup(List<DCRecursionTask<P,N>> tasks)
+    {
+      this.tasks = new ArrayList<>(tasks);
+    }
+
+    @Override
+    public void run()
+    {
+      for (DCRecursionTask<P,N> task : tasks)
+        task.run();
+    }
   }
   
-  private static final String POPULATION_MAP_NAME = "POPULATIONS";
+  private static final String POPULATION_MAP_NAME = "POPULATIONS-";
+  private static final String METRICS_MAP_NAME = "METRICS-";
+  private static final String EXECUTOR_NAME = "EXECUTOR-";
+  private static final String SETUP_LOCK_NAME = "SETUP_LOCK-";
   private static final String SETUP_COMPLETE = "SETUP_COMPLETE";
+  private static final String FAILURE = "FAILURE";
 
 }
@@ -0,0 +1,82 @@
+package dc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import bayonet.smc.ParticlePopulation;
+import bayonet.smc.ResamplingScheme;
+
+
+
+/**
+ * A population where each particle is a single double, stored without boxing.
+ */
+public final class DoubleParticlePopulation extends PrimitiveParticlePopulation
+{
+  private static final long serialVersionUID = 1L;
+  
+  public final double [] particles;
+  
+  private DoubleParticlePopulation(double [] particles, double [] normalizedWeights, double logScaling, boolean equallyWeighted)
+  {
+    super(normalizedWeights, logScaling, equallyWeighted);
+    if (particles.length != normalizedWeights.length)
+      throw new RuntimeException();
+    this.particles = particles;
+  }
+  
+  /**
+   * Note: logWeights is used to store the normalized weights.
+   */
+  public static DoubleParticlePopulation buildDestructivelyFromLogWeights(
+      double [] logWeights, 
+      double [] particles, 
+      double logScaling)
+  {
+    final double logNorm = expNormalize(logWeights);
+    return new DoubleParticlePopulation(particles, logWeights, logScaling + logNorm, false);
+  }
+  
+  public static DoubleParticlePopulation buildEquallyWeighted(double [] particles, double logScaling)
+  {
+    return new DoubleParticlePopulation(particles, equalWeights(particles.length), logScaling, true);
+  }
+  
+  public DoubleParticlePopulation resample(Random random, ResamplingScheme resamplingScheme)
+  {
+    return fromAncestors(resampledAncestors(random, resamplingScheme));
+  }
+  
+  /**
+   * See DCOptions.parallelResamplingScheme.
+   */
+  public DoubleParticlePopulation resample(Random random, ParallelResamplingScheme resamplingScheme, ForkJoinPool pool)
+  {
+    return fromAncestors(resampledAncestors(random, resamplingScheme, pool));
+  }
+  
+  private DoubleParticlePopulation fromAncestors(int [] ancestors)
+  {
+    final double [] resampled = new double[ancestors.length];
+    for (int i = 0; i < ancestors.length; i++)
+      resampled[i] = particles[ancestors[i]];
+    return buildEquallyWeighted(resampled, logScaling);
+  }
+  
+  /**
+   * @return A boxed copy, e.g. to use with DCProcessors.
+   */
+  public ParticlePopulation<Double> toParticlePopulation()
+  {
+    final List<Double> boxed = new ArrayList<>(particles.length);
+    final double [] logWeights = new double[particles.length];
+    for (int i = 0; i < particles.length; i++)
+    {
+      boxed.add(particles[i]);
+      logWeights[i] = Math.log(getNormalizedWeight(i));
+    }
+    return ParticlePopulation.buildDestructivelyFromLogWeights(logWeights, boxed, logScaling);
+  }
+}
@@ -0,0 +1,67 @@
+package dc;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+
+
+/**
+ * A read-only view where item i is base.get(indices[i]), e.g. to present a permuted or resampled 
+ * population without copying it.
+ * 
+ * When serialized, only the items of base that are referenced by indices are written (unless 
+ * base is an OutOfCoreParticleList).
+ */
+final class IndexedList<P> extends AbstractList<P> implements RandomAccess, Serializable
+{
+  private static final long serialVersionUID = 1L;
+  
+  final List<P> base;
+  final int [] indices;
+  
+  IndexedList(List<P> base, int [] indices)
+  {
+    this.base = base;
+    this.indices = indices;
+  }
+
+  /**
+   * Drops the items of base that are not referenced before serializing, e.g. particles that 
+   * were not selected during resampling.
+   */
+  private Object writeReplace()
+  {
+    if (base instanceof OutOfCoreParticleList)
+      return this; // base is only a handle to files
+    final int [] compactIndices = new int[indices.length];
+    final int [] compactIndex = new int[base.size()];
+    Arrays.fill(compactIndex, -1);
+    final List<P> compactBase = new ArrayList<>();
+    for (int i = 0; i < indices.length; i++)
+    {
+      if (compactIndex[indices[i]] == -1)
+      {
+        compactIndex[indices[i]] = compactBase.size();
+        compactBase.add(base.get(indices[i]));
+      }
+      compactIndices[i] = compactIndex[indices[i]];
+    }
+    return new IndexedList<>(compactBase, compactIndices);
+  }
+
+  @Override
+  public P get(int index)
+  {
+    return base.get(indices[index]);
+  }
+
+  @Override
+  public int size()
+  {
+    return indices.length;
+  }
+}
@@ -0,0 +1,28 @@
+package dc;
+
+import java.util.Random;
+
+
+
+/**
+ * A DCProposal specialized to particles that are ints, used by DCRecursion.dcRecurseInt
+ * to avoid boxing and per-particle allocations.
+ * 
+ * Note: implementation do not need to be thread safe, even when the distributed/parallel version is used.
+ */
+@FunctionalInterface
+public interface IntDCProposal
+{
+  
+  /**
+   * Propose a parent particle given the children. 
+   * All the randomness should be obtained via the provided random object.
+   * 
+   * @param random
+   * @param childrenParticles One state per child. The array is reused across calls.
+   * @param proposed The proposed particle should be written in proposed[particleIndex]
+   * @param particleIndex
+   * @return The LOG weight update
+   */
+  public double propose(Random random, int [] childrenParticles, int [] proposed, int particleIndex);
+}
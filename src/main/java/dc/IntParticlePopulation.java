@@ -0,0 +1,82 @@
+package dc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import bayonet.smc.ParticlePopulation;
+import bayonet.smc.ResamplingScheme;
+
+
+
+/**
+ * A population where each particle is a single int, stored without boxing.
+ */
+public final class IntParticlePopulation extends PrimitiveParticlePopulation
+{
+  private static final long serialVersionUID = 1L;
+  
+  public final int [] particles;
+  
+  private IntParticlePopulation(int [] particles, double [] normalizedWeights, double logScaling, boolean equallyWeighted)
+  {
+    super(normalizedWeights, logScaling, equallyWeighted);
+    if (particles.length != normalizedWeights.length)
+      throw new RuntimeException();
+    this.particles = particles;
+  }
+  
+  /**
+   * Note: logWeights is used to store the normalized weights.
+   */
+  public static IntParticlePopulation buildDestructivelyFromLogWeights(
+      double [] logWeights, 
+      int [] particles, 
+      double logScaling)
+  {
+    final double logNorm = expNormalize(logWeights);
+    return new IntParticlePopulation(particles, logWeights, logScaling + logNorm, false);
+  }
+  
+  public static IntParticlePopulation buildEquallyWeighted(int [] particles, double logScaling)
+  {
+    return new IntParticlePopulation(particles, equalWeights(particles.length), logScaling, true);
+  }
+  
+  public IntParticlePopulation resample(Random random, ResamplingScheme resamplingScheme)
+  {
+    return fromAncestors(resampledAncestors(random, resamplingScheme));
+  }
+  
+  /**
+   * See DCOptions.parallelResamplingScheme.
+   */
+  public IntParticlePopulation resample(Random random, ParallelResamplingScheme resamplingScheme, ForkJoinPool pool)
+  {
+    return fromAncestors(resampledAncestors(random, resamplingScheme, pool));
+  }
+  
+  private IntParticlePopulation fromAncestors(int [] ancestors)
+  {
+    final int [] resampled = new int[ancestors.length];
+    for (int i = 0; i < ancestors.length; i++)
+      resampled[i] = particles[ancestors[i]];
+    return buildEquallyWeighted(resampled, logScaling);
+  }
+  
+  /**
+   * @return A boxed copy, e.g. to use with DCProcessors.
+   */
+  public ParticlePopulation<Integer> toParticlePopulation()
+  {
+    final List<Integer> boxed = new ArrayList<>(particles.length);
+    final double [] logWeights = new double[particles.length];
+    for (int i = 0; i < particles.length; i++)
+    {
+      boxed.add(particles[i]);
+      logWeights[i] = Math.log(getNormalizedWeight(i));
+    }
+    return ParticlePopulation.buildDestructivelyFromLogWeights(logWeights, boxed, logScaling);
+  }
+}
@@ -0,0 +1,94 @@
+package dc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import bayonet.graphs.DirectedTree;
+import bayonet.smc.ParticlePopulation;
+
+
+
+/**
+ * Runs DC-SMC within this JVM only, using DCOptions.nThreadsPerNode fork-join threads to process 
+ * the subtrees in parallel (no cluster is formed, so cluster related options are ignored). 
+ * 
+ * Same usage and output as DistributedDC for a given seed, but without the startup and 
+ * scheduling overhead, which is useful for tests and small jobs. Unlike DistributedDC, several 
+ * instances can run at the same time.
+ *
+ * @param <P>
+ * @param <N>
+ */
+public final class LocalDC<P, N> extends AbstractDC<P, N>
+{
+  private final Map<N, ParticlePopulation<P>> populations = new ConcurrentHashMap<>();
+  
+  public LocalDC(
+      final DCOptions options, 
+      final DCProposalFactory<P, N> proposalFactory, 
+      final DirectedTree<N> tree)
+  {
+    super(options, proposalFactory, tree);
+  }
+
+  @Override
+  public CompletableFuture<ParticlePopulation<P>> startAsync()
+  {
+    checkNotAlreadyStarted();
+    createProposalPool();
+    final ForkJoinPool pool = new ForkJoinPool(options.nThreadsPerNode);
+    return CompletableFuture.supplyAsync(() -> 
+    {
+      try
+      {
+        new NodeTask(tree.getRoot()).invoke();
+      }
+      finally
+      {
+        pool.shutdown(); // the submitted tasks still complete
+      }
+      finish(populations.remove(tree.getRoot()));
+      return getRootPopulation();
+    }, pool);
+  }
+  
+  @Override
+  int nWorkers()
+  {
+    return 1;
+  }
+
+  /**
+   * Computes the subtree rooted at a node, the children subtrees being forked, and stores 
+   * the node's population.
+   */
+  private final class NodeTask extends RecursiveAction
+  {
+    private static final long serialVersionUID = 1L;
+    private final N node;
+    
+    NodeTask(N node)
+    {
+      this.node = node;
+    }
+
+    @Override
+    protected void compute()
+    {
+      final List<N> childrenNodes = new ArrayList<>(tree.getChildren(node));
+      final List<NodeTask> childrenTasks = new ArrayList<>(childrenNodes.size());
+      for (N childNode : childrenNodes)
+        childrenTasks.add(new NodeTask(childNode));
+      invokeAll(childrenTasks);
+      final List<ParticlePopulation<P>> childrenPopulations = new ArrayList<>(childrenNodes.size());
+      for (N childNode : childrenNodes)
+        childrenPopulations.add(populations.remove(childNode)); // won't be needed anymore
+      populations.put(node, recurse(node, childrenPopulations));
+    }
+  }
+}
@@ -0,0 +1,82 @@
+package dc;
+
+import java.io.IOException;
+
+import bayonet.smc.ParticlePopulation;
+
+import com.hazelcast.nio.BufferObjectDataInput;
+import com.hazelcast.nio.BufferObjectDataOutput;
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.DefaultSerializers;
+import com.hazelcast.nio.serialization.StreamSerializer;
+
+
+
+/**
+ * Hazelcast serializer recording in PopulationCodecStats the sizes and times of the populations
+ * exchanged between members when they are not compressed (CompressedPopulationSerializer records
+ * its own), so that DCMetrics counts the bytes moved whatever the serialization options.
+ *
+ * Populations are written with PopulationSerializer if DCOptions.compactSerialization is set, and
+ * otherwise with Hazelcast's Java serialization, as without this serializer.
+ */
+@SuppressWarnings({"rawtypes", "unchecked"})
+final class MeasuredPopulationSerializer implements StreamSerializer<ParticlePopulation>
+{
+  static final int TYPE_ID = 105;
+
+  private final StreamSerializer encoder;
+
+  MeasuredPopulationSerializer(boolean compact)
+  {
+    this.encoder = compact ?
+        new PopulationSerializer() :
+        new DefaultSerializers.ObjectSerializer(false, false); // Hazelcast's default settings
+  }
+
+  @Override
+  public void write(ObjectDataOutput out, ParticlePopulation population) throws IOException
+  {
+    final long start = System.nanoTime();
+    final int startPosition = position(out);
+    encoder.write(out, population);
+    final long nBytes = position(out) - startPosition;
+    PopulationCodecStats.record(nBytes, nBytes, System.nanoTime() - start);
+  }
+
+  @Override
+  public ParticlePopulation read(ObjectDataInput in) throws IOException
+  {
+    final long start = System.nanoTime();
+    final int startPosition = position(in);
+    final ParticlePopulation result = (ParticlePopulation) encoder.read(in);
+    final long nBytes = position(in) - startPosition;
+    PopulationCodecStats.record(nBytes, nBytes, System.nanoTime() - start);
+    return result;
+  }
+
+  // the streams Hazelcast passes to serializers are buffers, other streams are not measured
+
+  private static int position(ObjectDataOutput out)
+  {
+    return out instanceof BufferObjectDataOutput ? ((BufferObjectDataOutput) out).position() : 0;
+  }
+
+  private static int position(ObjectDataInput in)
+  {
+    return in instanceof BufferObjectDataInput ? ((BufferObjectDataInput) in).position() : 0;
+  }
+
+  @Override
+  public int getTypeId()
+  {
+    return TYPE_ID;
+  }
+
+  @Override
+  public void destroy()
+  {
+    encoder.destroy();
+  }
+}
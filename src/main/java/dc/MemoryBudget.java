@@ -0,0 +1,218 @@
+package dc;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.function.ToIntFunction;
+
+import bayonet.graphs.DirectedTree;
+
+import com.hazelcast.core.IMap;
+import com.hazelcast.monitor.LocalMapStats;
+
+
+
+/**
+ * Admission control for the tasks received by a member, bounding the memory taken by the populations
+ * stored in this member and those being computed by it (see DCOptions.memoryBudgetMB).
+ *
+ * Tasks combining children populations are always started, since they free memory. Tasks starting a
+ * new subtree are started only when the populations stored in this member, plus those held by the
+ * subtrees started, fit in the budget; otherwise they wait until stored populations are consumed.
+ * Waiting tasks are started first when their parent has the fewest children left to compute, so that
+ * parents in progress are completed before new ones are begun, and then by increasing peak number of
+ * populations (see peakPopulations(..)). To ensure progress, a task is always started when none is
+ * queued or running.
+ *
+ * A subtree is charged its peak number of populations: the most populations held at the same time
+ * when computing it serially, the children of each node being computed in the order given by
+ * computationOrder(..), i.e. those needing the most populations first (as for the Strahler number,
+ * which this generalizes to any number of children, counting the population being computed). The
+ * subtree tasks of DistributedDC follow that order.
+ *
+ * The size of a population is estimated as the average memory cost of those stored in this member,
+ * and, until one is stored, from the number of particles (see ESTIMATED_BYTES_PER_PARTICLE).
+ */
+final class MemoryBudget<N>
+{
+  /**
+   * A particle's weight plus a small particle, used until the first population is stored.
+   */
+  static final long ESTIMATED_BYTES_PER_PARTICLE = 64;
+  
+  private final DirectedTree<N> tree;
+  private final long budgetBytes;
+  private final IMap<?, ?> populations;
+  private final ToIntFunction<N> nUnprocessedChildren;
+  private final Map<N, Integer> peakPopulations = new HashMap<>();
+
+  private final PriorityQueue<WaitingTask> waiting = new PriorityQueue<>(
+      Comparator.<WaitingTask>comparingInt(task -> task.nUnprocessedSiblings)
+        .thenComparingInt(task -> task.peakPopulations)
+        .thenComparingLong(task -> task.order));
+  private long nReceived = 0;
+  private long nDelayed = 0;
+  private int nQueued = 0; // started, but not yet picked by a thread of the scheduler
+  private int nRunning = 0;
+  private int nChargedPopulations = 0; // of the subtrees queued or running
+  private long populationBytes;
+
+  /**
+   * @param nParticles The expected number of particles of a population
+   * @param populations The map whose entries stored in this member are counted
+   * @param nUnprocessedChildren The number of children of a node whose population is not yet computed
+   */
+  MemoryBudget(DirectedTree<N> tree, long budgetBytes, int nParticles, IMap<?, ?> populations, ToIntFunction<N> nUnprocessedChildren)
+  {
+    this.tree = tree;
+    this.budgetBytes = budgetBytes;
+    this.populationBytes = nParticles * ESTIMATED_BYTES_PER_PARTICLE;
+    this.populations = populations;
+    this.nUnprocessedChildren = nUnprocessedChildren;
+    computePeakPopulations(tree.getRoot());
+  }
+
+  /**
+   * Starts the task now or once there is enough memory; running(..) should be called when a thread 
+   * picks it, and done(..) when it is complete.
+   *
+   * @param start Queues the task in the scheduler
+   * @param newSubtree If the task computes the subtree of the node rather than combining the populations of its children
+   */
+  void admit(N node, boolean newSubtree, Runnable start)
+  {
+    if (!newSubtree)
+    {
+      synchronized (this) { nQueued++; }
+      start.run();
+      return;
+    }
+    final N parent = tree.getParent(node);
+    final int nUnprocessedSiblings = parent == null ? 0 : nUnprocessedChildren.applyAsInt(parent);
+    final WaitingTask task;
+    synchronized (this)
+    {
+      task = new WaitingTask(nUnprocessedSiblings, peakPopulations.get(node), nReceived++, start);
+      waiting.add(task);
+    }
+    release();
+    synchronized (this)
+    {
+      if (waiting.contains(task))
+        nDelayed++;
+    }
+  }
+
+  synchronized void running()
+  {
+    nQueued--;
+    nRunning++;
+  }
+
+  void done(N node, boolean newSubtree)
+  {
+    synchronized (this)
+    {
+      nRunning--;
+      if (newSubtree)
+        nChargedPopulations -= peakPopulations.get(node);
+    }
+    release();
+  }
+
+  synchronized int nWaiting()
+  {
+    return waiting.size();
+  }
+  
+  /**
+   * @return The number of tasks that could not start when received, for lack of memory.
+   */
+  synchronized long nDelayed()
+  {
+    return nDelayed;
+  }
+
+  /**
+   * Starts waiting tasks as long as memory allows, to be called when stored populations are removed.
+   */
+  void release()
+  {
+    final List<Runnable> started = new ArrayList<>();
+    synchronized (this)
+    {
+      while (!waiting.isEmpty() && (nQueued + nRunning == 0 || fits(waiting.peek().peakPopulations)))
+      {
+        final WaitingTask task = waiting.poll();
+        started.add(task.start);
+        nQueued++;
+        nChargedPopulations += task.peakPopulations;
+      }
+    }
+    for (Runnable start : started)
+      start.run();
+  }
+
+  private boolean fits(int nPopulations)
+  {
+    final LocalMapStats stats = populations.getLocalMapStats();
+    if (stats.getOwnedEntryCount() > 0)
+      populationBytes = stats.getOwnedEntryMemoryCost() / stats.getOwnedEntryCount();
+    return stats.getOwnedEntryMemoryCost() + (nChargedPopulations + nPopulations) * populationBytes <= budgetBytes;
+  }
+
+  /**
+   * @return The most populations held at the same time when computing the node's subtree serially, in 
+   *   computationOrder(..).
+   */
+  int peakPopulations(N node)
+  {
+    return peakPopulations.get(node);
+  }
+  
+  /**
+   * @return The children sorted by decreasing peak number of populations (in their original order when 
+   *   equal), the order minimizing the peak number of populations of their parent.
+   */
+  List<N> computationOrder(Collection<N> children)
+  {
+    final List<N> result = new ArrayList<>(children);
+    result.sort(Comparator.<N>comparingInt(peakPopulations::get).reversed());
+    return result;
+  }
+
+  private int computePeakPopulations(N node)
+  {
+    final List<Integer> childrenPeaks = new ArrayList<>();
+    for (N child : tree.getChildren(node))
+      childrenPeaks.add(computePeakPopulations(child));
+    childrenPeaks.sort(Comparator.reverseOrder());
+    // while the i-th child is computed, the populations of the i previous ones are held, and then those of 
+    // all the children together with the node's
+    int result = childrenPeaks.size() + 1;
+    for (int i = 0; i < childrenPeaks.size(); i++)
+      result = Math.max(result, childrenPeaks.get(i) + i);
+    peakPopulations.put(node, result);
+    return result;
+  }
+
+  private static final class WaitingTask
+  {
+    private final int nUnprocessedSiblings;
+    private final int peakPopulations;
+    private final long order;
+    private final Runnable start;
+
+    WaitingTask(int nUnprocessedSiblings, int peakPopulations, long order, Runnable start)
+    {
+      this.nUnprocessedSiblings = nUnprocessedSiblings;
+      this.peakPopulations = peakPopulations;
+      this.order = order;
+      this.start = start;
+    }
+  }
+}
@@ -0,0 +1,28 @@
+package dc;
+
+
+
+/**
+ * How the children particles are combined to form the parent particles (see DCOptions.mergeScheme).
+ */
+public enum MergeScheme
+{
+  /**
+   * Parent particle i is proposed from particle i of each child.
+   */
+  INDEX_MATCHING,
+  
+  /**
+   * Lightweight mixture: for each parent particle, DCOptions.nMergeCandidates candidates are proposed, 
+   * candidate m using the m-th of a set of random permutations of each child population (the first 
+   * one being the identity). One candidate is kept with probability proportional to its weight, and the 
+   * parent weight is the average of the candidates weights.
+   */
+  PERMUTATIONS,
+  
+  /**
+   * Same as PERMUTATIONS, but each candidate picks an independent, uniformly chosen particle in each 
+   * child population, i.e. the candidates are a subsample of the product set of the children populations.
+   */
+  PRODUCT_SUBSAMPLING;
+}
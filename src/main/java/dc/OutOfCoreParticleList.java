@@ -0,0 +1,391 @@
+package dc;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.io.CountingOutputStream;
+
+
+
+/**
+ * A fixed size list of particles stored in files, one file per chunk of consecutive indices (see
+ * DCOptions.outOfCoreDirectory).
+ *
+ * Items are first filled with set(..), possibly from several threads. When all the items of a chunk
+ * are set, the chunk is serialized to its file and its buffer is released. Each chunk is written as 
+ * independently serialized pages of PAGE_SIZE items, preceded by their offsets, so that get(..) only 
+ * decodes the page of the item, read from the memory-mapped file. Pages are streamed to the file as they 
+ * are serialized, and files larger than a mapping (2 GB) are mapped in several windows of whole pages. 
+ * Decoded pages are kept in a cache 
+ * shared by all the lists of the JVM, holding at most MAX_DECODED_PAGES pages. Reads in index order, 
+ * as in the proposal loops and in views of sorted resampled ancestors, decode each page once, while 
+ * other reads, e.g. through permuted views, decode one page per cache miss.
+ *
+ * Only the particles are stored out of core: the weights stay in the double[] of ParticlePopulation, 
+ * which is part of bayonet and read directly by resampling, i.e. 8 bytes per particle remain on the heap.
+ *
+ * The files are only removed by delete(), which the DC engines call when a population is consumed, 
+ * so the files of the root population are left to the caller (see deleteIfOutOfCore(..)).
+ *
+ * Serializing this list only writes the location of its files, so other cluster members can only read it
+ * if the directory is on a file system they share.
+ */
+public final class OutOfCoreParticleList<P> extends AbstractList<P> implements RandomAccess, Serializable
+{
+  private static final long serialVersionUID = 1L;
+  
+  static final int PAGE_SIZE = 256;
+  static final int MAX_DECODED_PAGES = 64 * Runtime.getRuntime().availableProcessors();
+  
+  private static final Cache<PageKey, Object []> decodedPages = CacheBuilder.newBuilder()
+      .maximumSize(MAX_DECODED_PAGES)
+      .build();
+
+  private final File directory;
+  private final String id;
+  private final int size;
+  private final int chunkSize;
+  private final long maxWindowBytes;
+
+  // only used while filling the list
+  private transient Object [][] buffers;
+  private transient AtomicIntegerArray nSet;
+
+  private transient MappedChunk [] mappedChunks;
+
+  public OutOfCoreParticleList(File directory, int size, int chunkSize)
+  {
+    this(directory, size, chunkSize, Integer.MAX_VALUE);
+  }
+
+  /**
+   * @param maxWindowBytes Maximum size of the memory-mapped windows of a chunk file (at most 
+   *   Integer.MAX_VALUE, smaller values are for testing)
+   */
+  OutOfCoreParticleList(File directory, int size, int chunkSize, long maxWindowBytes)
+  {
+    if (size < 0 || chunkSize <= 0 || maxWindowBytes <= 0 || maxWindowBytes > Integer.MAX_VALUE)
+      throw new RuntimeException();
+    directory.mkdirs();
+    this.directory = directory;
+    this.id = UUID.randomUUID().toString();
+    this.size = size;
+    this.chunkSize = chunkSize;
+    this.maxWindowBytes = maxWindowBytes;
+    this.buffers = new Object[nChunks()][];
+    this.nSet = new AtomicIntegerArray(nChunks());
+  }
+
+  @Override
+  public P set(int index, P particle)
+  {
+    if (buffers == null)
+      throw new RuntimeException("Items can only be set before the list is written to disk");
+    final int chunk = index / chunkSize;
+    Object [] buffer = null;
+    synchronized (buffers)
+    {
+      if (buffers[chunk] == null)
+        buffers[chunk] = new Object[chunkLength(chunk)];
+      buffer = buffers[chunk];
+    }
+    buffer[index % chunkSize] = particle;
+    if (nSet.incrementAndGet(chunk) == buffer.length)
+    {
+      write(chunk, buffer);
+      synchronized (buffers) { buffers[chunk] = null; }
+    }
+    return null;
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public P get(int index)
+  {
+    if (index < 0 || index >= size)
+      throw new IndexOutOfBoundsException("" + index);
+    final int offset = index % chunkSize;
+    return (P) page(index / chunkSize, offset / PAGE_SIZE)[offset % PAGE_SIZE];
+  }
+
+  @Override
+  public int size()
+  {
+    return size;
+  }
+
+  /**
+   * Deletes the files backing this list and drops its decoded pages, after which it should not be read.
+   */
+  public void delete()
+  {
+    for (int chunk = 0; chunk < nChunks(); chunk++)
+    {
+      file(chunk).delete();
+      for (int page = 0; page < nPages(chunkLength(chunk)); page++)
+        decodedPages.invalidate(new PageKey(this, chunk, page));
+    }
+    synchronized (this) { mappedChunks = null; }
+  }
+
+  /**
+   * Deletes the files backing the particles if they are stored out of core, directly or 
+   * through an IndexedList view, e.g. for the root population once it is no longer needed.
+   */
+  public static void deleteIfOutOfCore(List<?> particles)
+  {
+    if (particles instanceof IndexedList)
+      particles = ((IndexedList<?>) particles).base;
+    if (particles instanceof OutOfCoreParticleList)
+      ((OutOfCoreParticleList<?>) particles).delete();
+  }
+
+  private Object [] page(int chunk, int page)
+  {
+    try
+    {
+      return decodedPages.get(new PageKey(this, chunk, page), () -> read(chunk, page)); // concurrent misses on a page decode it once
+    }
+    catch (ExecutionException e)
+    {
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  /**
+   * Chunk file layout: number of pages, offsets of the pages and of the end of the file, then 
+   * the pages, each an Object[] serialized with its own ObjectOutputStream. The header is written 
+   * last, once the offsets are known.
+   */
+  private void write(int chunk, Object [] buffer)
+  {
+    final int nPages = nPages(buffer.length);
+    final int headerSize = Integer.BYTES + (nPages + 1) * Long.BYTES;
+    final ByteBuffer header = ByteBuffer.allocate(headerSize);
+    header.putInt(nPages);
+    try (FileChannel channel = FileChannel.open(file(chunk).toPath(), 
+        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+    {
+      channel.position(headerSize);
+      final CountingOutputStream pages = new CountingOutputStream(
+          new BufferedOutputStream(Channels.newOutputStream(channel)));
+      for (int page = 0; page < nPages; page++)
+      {
+        header.putLong(headerSize + pages.getCount());
+        final ObjectOutputStream out = new ObjectOutputStream(pages);
+        out.writeObject(Arrays.copyOfRange(buffer, page * PAGE_SIZE, Math.min(buffer.length, (page + 1) * PAGE_SIZE)));
+        out.flush(); // not closed, which would close the channel
+      }
+      header.putLong(headerSize + pages.getCount());
+      pages.flush();
+      header.flip();
+      while (header.hasRemaining())
+        channel.write(header, header.position());
+    }
+    catch (IOException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private Object [] read(int chunk, int page)
+  {
+    final MappedChunk mapped = mapped(chunk);
+    final int window = mapped.pageWindows[page];
+    final ByteBuffer file = mapped.windows[window].duplicate(); // own position and limit
+    final long windowStart = mapped.windowStarts[window];
+    file.limit((int) (mapped.offsets[page + 1] - windowStart)).position((int) (mapped.offsets[page] - windowStart));
+    try (ObjectInputStream in = new ObjectInputStream(new ByteBufferInputStream(file)))
+    {
+      return (Object []) in.readObject();
+    }
+    catch (IOException | ClassNotFoundException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private synchronized MappedChunk mapped(int chunk)
+  {
+    if (mappedChunks == null)
+      mappedChunks = new MappedChunk[nChunks()];
+    if (mappedChunks[chunk] == null)
+      try (FileChannel channel = FileChannel.open(file(chunk).toPath(), StandardOpenOption.READ))
+      {
+        mappedChunks[chunk] = new MappedChunk(channel, maxWindowBytes);
+      }
+      catch (IOException e)
+      {
+        throw new RuntimeException(e);
+      }
+    return mappedChunks[chunk];
+  }
+
+  /**
+   * The offsets of the pages of a chunk file and the windows mapping them, each holding whole pages.
+   */
+  private static final class MappedChunk
+  {
+    private final long [] offsets;
+    private final int [] pageWindows;
+    private final long [] windowStarts;
+    private final MappedByteBuffer [] windows;
+
+    MappedChunk(FileChannel channel, long maxWindowBytes) throws IOException
+    {
+      final ByteBuffer nPagesBuffer = ByteBuffer.allocate(Integer.BYTES);
+      readFully(channel, nPagesBuffer, 0);
+      final int nPages = nPagesBuffer.getInt(0);
+      final ByteBuffer offsetsBuffer = ByteBuffer.allocate((nPages + 1) * Long.BYTES);
+      readFully(channel, offsetsBuffer, Integer.BYTES);
+      offsetsBuffer.flip();
+      offsets = new long[nPages + 1];
+      offsetsBuffer.asLongBuffer().get(offsets);
+      
+      pageWindows = new int[nPages];
+      final List<Long> windowStartList = new ArrayList<>(), windowEnds = new ArrayList<>();
+      long windowStart = nPages == 0 ? 0 : offsets[0];
+      for (int page = 0; page < nPages; page++)
+      {
+        if (offsets[page + 1] - offsets[page] > maxWindowBytes)
+          throw new RuntimeException("Page " + page + " is larger than a memory-mapped window");
+        if (offsets[page + 1] - windowStart > maxWindowBytes)
+        {
+          windowStartList.add(windowStart);
+          windowEnds.add(offsets[page]);
+          windowStart = offsets[page];
+        }
+        pageWindows[page] = windowStartList.size();
+      }
+      if (nPages > 0)
+      {
+        windowStartList.add(windowStart);
+        windowEnds.add(offsets[nPages]);
+      }
+      windowStarts = new long[windowStartList.size()];
+      windows = new MappedByteBuffer[windowStarts.length];
+      for (int window = 0; window < windows.length; window++)
+      {
+        windowStarts[window] = windowStartList.get(window);
+        // stays valid after the channel is closed
+        windows[window] = channel.map(FileChannel.MapMode.READ_ONLY, windowStarts[window], windowEnds.get(window) - windowStarts[window]); 
+      }
+    }
+    
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+    {
+      while (buffer.hasRemaining())
+        if (channel.read(buffer, position + buffer.position()) < 0)
+          throw new IOException("Truncated chunk file");
+    }
+  }
+
+  private Object writeReplace()
+  {
+    if (buffers != null)
+      for (int chunk = 0; chunk < nChunks(); chunk++)
+        if (nSet.get(chunk) != chunkLength(chunk))
+          throw new RuntimeException("Some items were not set");
+    return this;
+  }
+
+  private File file(int chunk)
+  {
+    return new File(directory, id + "-" + chunk);
+  }
+
+  private int nChunks()
+  {
+    return (size + chunkSize - 1) / chunkSize;
+  }
+
+  private int chunkLength(int chunk)
+  {
+    return Math.min(chunkSize, size - chunk * chunkSize);
+  }
+
+  private static int nPages(int chunkLength)
+  {
+    return (chunkLength + PAGE_SIZE - 1) / PAGE_SIZE;
+  }
+
+  /**
+   * Identifies a page of a given list instance, so that lists never share pages.
+   */
+  private static final class PageKey
+  {
+    private final OutOfCoreParticleList<?> list;
+    private final int chunk;
+    private final int page;
+
+    PageKey(OutOfCoreParticleList<?> list, int chunk, int page)
+    {
+      this.list = list;
+      this.chunk = chunk;
+      this.page = page;
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return (System.identityHashCode(list) * 31 + chunk) * 31 + page;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+      if (!(obj instanceof PageKey))
+        return false;
+      final PageKey other = (PageKey) obj;
+      return list == other.list && chunk == other.chunk && page == other.page;
+    }
+  }
+
+  private static final class ByteBufferInputStream extends InputStream
+  {
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer)
+    {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read()
+    {
+      return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte [] bytes, int offset, int length)
+    {
+      if (!buffer.hasRemaining())
+        return -1;
+      length = Math.min(length, buffer.remaining());
+      buffer.get(bytes, offset, length);
+      return length;
+    }
+  }
+}
@@ -0,0 +1,30 @@
+package dc;
+
+
+
+/**
+ * Resampling schemes supported by the parallel resampler (see DCOptions.parallelResamplingScheme).
+ */
+public enum ParallelResamplingScheme
+{
+  /**
+   * Independent draws from the weights.
+   */
+  MULTINOMIAL,
+  
+  /**
+   * One uniform draw in each of the intervals [k/N, (k+1)/N).
+   */
+  STRATIFIED,
+  
+  /**
+   * Same as STRATIFIED, but with a single uniform shared by all the intervals.
+   */
+  SYSTEMATIC,
+  
+  /**
+   * Particle i is first copied floor(N w_i) times, and the remaining particles are drawn 
+   * multinomially from the residual weights.
+   */
+  RESIDUAL;
+}
@@ -0,0 +1,44 @@
+package dc;
+
+
+
+/**
+ * Sizes and times of the populations encoded or decoded by the current thread between start() and 
+ * stop() (see CompressedPopulationSerializer and MeasuredPopulationSerializer). Without compression, the 
+ * encoded size is the raw size.
+ */
+final class PopulationCodecStats
+{
+  long rawBytes = 0;
+  long encodedBytes = 0;
+  long codecNanos = 0;
+  
+  double compressionRatio()
+  {
+    return encodedBytes == 0 ? Double.NaN : ((double) rawBytes) / encodedBytes;
+  }
+  
+  static void start()
+  {
+    current.set(new PopulationCodecStats());
+  }
+  
+  static PopulationCodecStats stop()
+  {
+    final PopulationCodecStats result = current.get();
+    current.remove();
+    return result;
+  }
+  
+  static void record(long rawBytes, long encodedBytes, long codecNanos)
+  {
+    final PopulationCodecStats stats = current.get();
+    if (stats == null)
+      return;
+    stats.rawBytes += rawBytes;
+    stats.encodedBytes += encodedBytes;
+    stats.codecNanos += codecNanos;
+  }
+  
+  private static final ThreadLocal<PopulationCodecStats> current = new ThreadLocal<>();
+}
@@ -0,0 +1,67 @@
+package dc;
+
+import java.io.Serializable;
+
+import com.hazelcast.core.PartitionAware;
+
+
+
+/**
+ * Key of a node's population in the distributed population map. The populations of siblings are 
+ * stored in the partition of their parent node, which is also where the parent's task is sent 
+ * (see DistributedDC.submitTask()), so that the children populations are read locally.
+ * 
+ * The partition is identified by the parent's hashCode() (assumed to be the same in all members, as 
+ * for the nodes' random seeds). Siblings share that hash, which is all that is needed to store them in 
+ * the same partition, so the key only holds the hash instead of the parent itself.
+ */
+final class PopulationKey<N> implements PartitionAware<Integer>, Serializable
+{
+  private static final long serialVersionUID = 1L;
+  final N node;
+  private final int partitionKey; 
+  
+  /**
+   * @param parent The parent of node, or null for the root
+   */
+  PopulationKey(N node, N parent)
+  {
+    this.node = node;
+    this.partitionKey = partitionKey(parent == null ? node : parent);
+  }
+  
+  /**
+   * @return The partition key under which the populations of the children of the given node are stored.
+   */
+  static Integer partitionKey(Object node)
+  {
+    return node.hashCode();
+  }
+
+  @Override
+  public Integer getPartitionKey()
+  {
+    return partitionKey;
+  }
+
+  @Override
+  public int hashCode()
+  {
+    return node.hashCode();
+  }
+
+  @Override
+  public boolean equals(Object obj)
+  {
+    if (!(obj instanceof PopulationKey))
+      return false;
+    final PopulationKey<?> other = (PopulationKey<?>) obj;
+    return node.equals(other.node) && partitionKey == other.partitionKey;
+  }
+  
+  @Override
+  public String toString()
+  {
+    return node.toString();
+  }
+}
@@ -0,0 +1,171 @@
+package dc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import bayonet.smc.ParticlePopulation;
+
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.StreamSerializer;
+
+
+
+/**
+ * Hazelcast serializer for the populations exchanged between members (see DCOptions.compactSerialization).
+ * 
+ * Each distinct particle is written once (with Hazelcast's serializer for its class), followed by the 
+ * number of copies of each (or the index of the copy at each position if they are not consecutive), and 
+ * the weights are omitted when they are all equal, as after resampling. Objects written with SharedReferences, e.g. nodes shared by all particles, are 
+ * also written once per population.
+ * 
+ * The weights and log scaling are rebuilt using ParticlePopulation.buildDestructivelyFromLogWeights(), 
+ * so they can differ from the original ones in the last bits.
+ */
+@SuppressWarnings("rawtypes")
+final class PopulationSerializer implements StreamSerializer<ParticlePopulation>
+{
+  static final int TYPE_ID = 100;
+
+  @Override
+  public void write(ObjectDataOutput out, ParticlePopulation population) throws IOException
+  {
+    final SharedReferences scope = SharedReferences.open();
+    try
+    {
+      final int nParticles = population.nParticles();
+      out.writeInt(nParticles);
+      out.writeDouble(population.logScaling);
+      final boolean equallyWeighted = isEquallyWeighted(population);
+      out.writeBoolean(equallyWeighted);
+      if (!equallyWeighted)
+      {
+        final double [] weights = new double[nParticles];
+        for (int i = 0; i < nParticles; i++)
+          weights[i] = population.getNormalizedWeight(i);
+        out.writeDoubleArray(weights);
+      }
+      final List<?> particles = population.particles;
+      final boolean outOfCore = 
+          particles instanceof OutOfCoreParticleList || 
+          (particles instanceof IndexedList && ((IndexedList<?>) particles).base instanceof OutOfCoreParticleList);
+      out.writeBoolean(outOfCore);
+      if (outOfCore)
+      {
+        out.writeObject(particles); // only a handle to files
+        return;
+      }
+      final Map<Object, Integer> distinctIndices = new IdentityHashMap<>();
+      final List<Object> distinct = new ArrayList<>();
+      final int [] indices = new int[nParticles];
+      for (int i = 0; i < nParticles; i++)
+      {
+        final Object particle = particles.get(i);
+        Integer index = distinctIndices.get(particle);
+        if (index == null)
+        {
+          index = distinct.size();
+          distinctIndices.put(particle, index);
+          distinct.add(particle);
+        }
+        indices[i] = index;
+      }
+      out.writeInt(distinct.size());
+      for (Object particle : distinct)
+        out.writeObject(particle);
+      // after resampling, copies are consecutive, so the indices are 0, .., 0, 1, .., 1, 2, ..
+      final boolean consecutiveCopies = indices.length == 0 || indices[indices.length - 1] == distinct.size() - 1 && isSorted(indices);
+      out.writeBoolean(consecutiveCopies);
+      if (consecutiveCopies)
+      {
+        final int [] nCopies = new int[distinct.size()];
+        for (final int index : indices)
+          nCopies[index]++;
+        out.writeIntArray(nCopies);
+      }
+      else
+        out.writeIntArray(indices);
+    }
+    finally
+    {
+      scope.close();
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public ParticlePopulation read(ObjectDataInput in) throws IOException
+  {
+    final SharedReferences scope = SharedReferences.open();
+    try
+    {
+      final int nParticles = in.readInt();
+      final double logScaling = in.readDouble();
+      final boolean equallyWeighted = in.readBoolean();
+      final double [] logWeights = equallyWeighted ? new double[nParticles] : in.readDoubleArray();
+      if (!equallyWeighted)
+        for (int i = 0; i < nParticles; i++)
+          logWeights[i] = Math.log(logWeights[i]);
+      final List<Object> particles;
+      if (in.readBoolean())
+        particles = in.readObject();
+      else
+      {
+        final int nDistinct = in.readInt();
+        final List<Object> distinct = new ArrayList<>(nDistinct);
+        for (int i = 0; i < nDistinct; i++)
+          distinct.add(in.readObject());
+        final int [] indices;
+        if (in.readBoolean())
+        {
+          indices = new int[nParticles];
+          final int [] nCopies = in.readIntArray();
+          for (int index = 0, i = 0; index < nDistinct; index++)
+            for (int copy = 0; copy < nCopies[index]; copy++)
+              indices[i++] = index;
+        }
+        else
+          indices = in.readIntArray();
+        particles = new IndexedList<>(distinct, indices);
+      }
+      // normalizing adds log(nParticles) to the log scaling if the weights are equal, approximately 0 otherwise
+      return ParticlePopulation.buildDestructivelyFromLogWeights(
+          logWeights, 
+          particles, 
+          equallyWeighted ? logScaling - Math.log(nParticles) : logScaling);
+    }
+    finally
+    {
+      scope.close();
+    }
+  }
+  
+  private static boolean isSorted(int [] indices)
+  {
+    for (int i = 1; i < indices.length; i++)
+      if (indices[i] < indices[i - 1])
+        return false;
+    return true;
+  }
+  
+  private static boolean isEquallyWeighted(ParticlePopulation<?> population)
+  {
+    final double weight = 1.0 / population.nParticles();
+    for (int i = 0; i < population.nParticles(); i++)
+      if (population.getNormalizedWeight(i) != weight)
+        return false;
+    return true;
+  }
+
+  @Override
+  public int getTypeId()
+  {
+    return TYPE_ID;
+  }
+
+  @Override
+  public void destroy() {}
+}
@@ -0,0 +1,113 @@
+package dc;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import bayonet.smc.ResamplingScheme;
+
+
+
+/**
+ * Weights and normalization shared by the populations of primitive particles (see
+ * IntParticlePopulation and DoubleParticlePopulation). Follows the same conventions
+ * as bayonet.smc.ParticlePopulation, but avoids boxing each particle.
+ */
+public abstract class PrimitiveParticlePopulation implements Serializable
+{
+  private static final long serialVersionUID = 1L;
+
+  private final double [] normalizedWeights;
+
+  /**
+   * Log of the sum of the unnormalized weights.
+   */
+  public final double logScaling;
+
+  /**
+   * True if all the weights are known to be 1/nParticles (e.g. after resampling), in which case
+   * the parent proposals skip reading them.
+   */
+  public final boolean equallyWeighted;
+
+  PrimitiveParticlePopulation(double [] normalizedWeights, double logScaling, boolean equallyWeighted)
+  {
+    this.normalizedWeights = normalizedWeights;
+    this.logScaling = logScaling;
+    this.equallyWeighted = equallyWeighted;
+  }
+
+  public final int nParticles()
+  {
+    return normalizedWeights.length;
+  }
+
+  public final double getNormalizedWeight(int index)
+  {
+    return normalizedWeights[index];
+  }
+
+  public final double getESS()
+  {
+    if (equallyWeighted)
+      return nParticles();
+    double sumOfSquares = 0.0;
+    for (final double w : normalizedWeights)
+      sumOfSquares += w * w;
+    return 1.0 / sumOfSquares;
+  }
+
+  public final double getRelativeESS()
+  {
+    return getESS() / nParticles();
+  }
+
+  public final double logNormEstimate()
+  {
+    return logScaling - Math.log(nParticles());
+  }
+
+  /**
+   * @return For each new particle, the index of the particle it copies.
+   */
+  final int [] resampledAncestors(Random random, ResamplingScheme resamplingScheme)
+  {
+    final double [] darts = resamplingScheme.getSortedCumulativeProbabilities(random, nParticles());
+    return Resampling.ancestors(darts, this::getNormalizedWeight, nParticles());
+  }
+
+  /**
+   * Same as resampledAncestors(Random, ResamplingScheme), computing the ancestors in parallel with the
+   * given pool (or serially if it is null), see DCOptions.parallelResamplingScheme.
+   */
+  final int [] resampledAncestors(Random random, ParallelResamplingScheme resamplingScheme, ForkJoinPool pool)
+  {
+    return Resampling.ancestors(random, resamplingScheme, this::getNormalizedWeight, nParticles(), nParticles(), pool);
+  }
+
+  static double [] equalWeights(int nParticles)
+  {
+    final double [] result = new double[nParticles];
+    Arrays.fill(result, 1.0 / nParticles);
+    return result;
+  }
+
+  /**
+   * Exponentiates and normalizes in place.
+   *
+   * @return The log of the normalization
+   */
+  static double expNormalize(double [] logWeights)
+  {
+    double max = Double.NEGATIVE_INFINITY;
+    for (final double logWeight : logWeights)
+      max = Math.max(max, logWeight);
+    double sum = 0.0;
+    for (int i = 0; i < logWeights.length; i++)
+      sum += (logWeights[i] = Math.exp(logWeights[i] - max));
+    for (int i = 0; i < logWeights.length; i++)
+      logWeights[i] /= sum;
+    return max + Math.log(sum);
+  }
+}
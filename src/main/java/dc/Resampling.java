@@ -0,0 +1,323 @@
+package dc;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntToDoubleFunction;
+import java.util.stream.IntStream;
+
+import bayonet.smc.ParticlePopulation;
+import bayonet.smc.ResamplingScheme;
+
+
+
+/**
+ * Resampling utilities based on ancestor indices, shared by the different population types.
+ */
+final class Resampling
+{
+  /**
+   * @param sortedDarts Sorted points in [0, 1), see ResamplingScheme.getSortedCumulativeProbabilities()
+   * @param normalizedWeights
+   * @param nParticles Number of weights
+   * @return For each dart, the index of the particle it falls in.
+   */
+  static int [] ancestors(double [] sortedDarts, IntToDoubleFunction normalizedWeights, int nParticles)
+  {
+    final int [] result = new int[sortedDarts.length];
+    double cumulative = 0.0;
+    int ancestor = -1;
+    for (int i = 0; i < sortedDarts.length; i++)
+    {
+      while (sortedDarts[i] >= cumulative && ancestor < nParticles - 1)
+        cumulative += normalizedWeights.applyAsDouble(++ancestor);
+      result[i] = ancestor;
+    }
+    return result;
+  }
+  
+  /**
+   * Resamples a population to a possibly different number of particles. The particles are not copied, 
+   * instead the result is an IndexedList view holding the ancestor indices, so that duplicated particles 
+   * share storage. If the population is itself such a view, the indices are composed instead of 
+   * nesting views.
+   * 
+   * @return An equally weighted population with the same normalization estimate.
+   */
+  static <P> ParticlePopulation<P> resample(
+      Random random, 
+      ResamplingScheme resamplingScheme, 
+      ParticlePopulation<P> population,
+      int nParticles)
+  {
+    final double [] darts = resamplingScheme.getSortedCumulativeProbabilities(random, nParticles);
+    return fromAncestors(population, ancestors(darts, population::getNormalizedWeight, population.nParticles()));
+  }
+  
+  /**
+   * Same as resample(), but computing the ancestors in parallel with the given pool (or serially if it is 
+   * null). The work is split in segments of fixed size, each using its own random stream, so that the output 
+   * does not depend on the number of threads.
+   */
+  static <P> ParticlePopulation<P> resample(
+      Random random, 
+      ParallelResamplingScheme resamplingScheme, 
+      ParticlePopulation<P> population,
+      int nParticles,
+      ForkJoinPool pool)
+  {
+    return fromAncestors(population, ancestors(random, resamplingScheme, population::getNormalizedWeight, population.nParticles(), nParticles, pool));
+  }
+  
+  private static <P> ParticlePopulation<P> fromAncestors(ParticlePopulation<P> population, int [] ancestors)
+  {
+    final int nParticles = ancestors.length;
+    final List<P> resampled;
+    if (population.particles instanceof IndexedList)
+    {
+      final IndexedList<P> view = (IndexedList<P>) population.particles;
+      for (int i = 0; i < nParticles; i++)
+        ancestors[i] = view.indices[ancestors[i]];
+      resampled = new IndexedList<>(view.base, ancestors);
+    }
+    else
+      resampled = new IndexedList<>(population.particles, ancestors);
+    // zero log weights get normalized to 1/nParticles, adding log(nParticles) to the scaling
+    return ParticlePopulation.buildDestructivelyFromLogWeights(
+        new double[nParticles], 
+        resampled, 
+        population.logNormEstimate());
+  }
+  
+  static final int SEGMENT_SIZE = 1 << 14;
+  
+  /**
+   * @return nParticles sorted ancestor indices in [0, nWeights), computed with a parallel prefix sum 
+   *    of the weights, followed by ancestor assignment in parallel over segments of darts.
+   */
+  static int [] ancestors(
+      final Random random,
+      final ParallelResamplingScheme resamplingScheme, 
+      final IntToDoubleFunction normalizedWeights, 
+      final int nWeights,
+      final int nParticles,
+      final ForkJoinPool pool)
+  {
+    final long seed = random.nextLong();
+    if (resamplingScheme == ParallelResamplingScheme.RESIDUAL)
+      return residualAncestors(seed, normalizedWeights, nWeights, nParticles, pool);
+    
+    final double [] cumulative = new double[nWeights];
+    forEachSegment(nWeights, pool, (segment, start, end) -> 
+    {
+      for (int i = start; i < end; i++)
+        cumulative[i] = normalizedWeights.applyAsDouble(i);
+    });
+    inclusiveScan(cumulative, pool);
+    final double [] darts = sortedDarts(seed, resamplingScheme, nParticles, pool);
+    return searchAncestors(darts, cumulative, pool);
+  }
+  
+  /**
+   * @return Sorted darts in [0, 1).
+   */
+  private static double [] sortedDarts(long seed, ParallelResamplingScheme resamplingScheme, int nDarts, ForkJoinPool pool)
+  {
+    switch (resamplingScheme)
+    {
+      case SYSTEMATIC :
+      {
+        final double shared = new Random(seed).nextDouble();
+        final double [] result = new double[nDarts];
+        forEachSegment(nDarts, pool, (segment, start, end) -> 
+        {
+          for (int k = start; k < end; k++)
+            result[k] = (k + shared) / nDarts;
+        });
+        return result;
+      }
+      case STRATIFIED :
+      {
+        final double [] result = new double[nDarts];
+        forEachSegment(nDarts, pool, (segment, start, end) -> 
+        {
+          final Random segmentRandom = new Random(DCRecursion.blockSeed(seed, segment));
+          for (int k = start; k < end; k++)
+            result[k] = (k + segmentRandom.nextDouble()) / nDarts;
+        });
+        return result;
+      }
+      case MULTINOMIAL :
+      {
+        // sorted uniforms obtained as normalized partial sums of nDarts + 1 exponentials
+        final double [] spacings = new double[nDarts + 1];
+        forEachSegment(nDarts + 1, pool, (segment, start, end) -> 
+        {
+          final Random segmentRandom = new Random(DCRecursion.blockSeed(seed, segment));
+          for (int k = start; k < end; k++)
+            spacings[k] = -Math.log1p(-segmentRandom.nextDouble());
+        });
+        inclusiveScan(spacings, pool);
+        final double total = spacings[nDarts];
+        final double [] result = new double[nDarts];
+        forEachSegment(nDarts, pool, (segment, start, end) -> 
+        {
+          for (int k = start; k < end; k++)
+            result[k] = spacings[k] / total;
+        });
+        return result;
+      }
+      default :
+        throw new RuntimeException();
+    }
+  }
+  
+  /**
+   * @param darts Sorted, in [0, 1)
+   * @param cumulative Inclusive cumulative sums of the weights
+   */
+  private static int [] searchAncestors(double [] darts, double [] cumulative, ForkJoinPool pool)
+  {
+    final int last = cumulative.length - 1;
+    final double total = cumulative[last];
+    final int [] result = new int[darts.length];
+    forEachSegment(darts.length, pool, (segment, start, end) -> 
+    {
+      if (start == end)
+        return;
+      // binary search for the first ancestor of the segment, then walk
+      int ancestor = firstAbove(cumulative, darts[start] * total);
+      for (int k = start; k < end; k++)
+      {
+        final double dart = darts[k] * total;
+        while (ancestor < last && cumulative[ancestor] <= dart)
+          ancestor++;
+        result[k] = ancestor;
+      }
+    });
+    return result;
+  }
+  
+  private static int firstAbove(double [] sorted, double value)
+  {
+    int low = 0, high = sorted.length - 1;
+    while (low < high)
+    {
+      final int middle = (low + high) >>> 1;
+      if (sorted[middle] > value)
+        high = middle;
+      else
+        low = middle + 1;
+    }
+    return low;
+  }
+  
+  private static int [] residualAncestors(
+      final long seed, 
+      final IntToDoubleFunction normalizedWeights, 
+      final int nWeights, 
+      final int nParticles, 
+      final ForkJoinPool pool)
+  {
+    final int [] counts = new int[nWeights];
+    final double [] residuals = new double[nWeights];
+    forEachSegment(nWeights, pool, (segment, start, end) -> 
+    {
+      for (int i = start; i < end; i++)
+      {
+        final double expected = nParticles * normalizedWeights.applyAsDouble(i);
+        counts[i] = (int) Math.floor(expected);
+        residuals[i] = expected - counts[i];
+      }
+    });
+    
+    // the remaining particles are drawn multinomially from the residuals
+    int nDeterministic = 0;
+    for (final int count : counts)
+      nDeterministic += count;
+    final int nResidual = Math.max(0, nParticles - nDeterministic);
+    if (nResidual > 0)
+    {
+      inclusiveScan(residuals, pool);
+      final double [] darts = sortedDarts(DCRecursion.blockSeed(seed, -1), ParallelResamplingScheme.MULTINOMIAL, nResidual, pool);
+      for (final int ancestor : searchAncestors(darts, residuals, pool))
+        counts[ancestor]++;
+    }
+    
+    // expand the counts into sorted ancestors
+    final int [] offsets = counts.clone();
+    inclusiveScan(offsets, pool);
+    final int [] result = new int[nParticles];
+    forEachSegment(nWeights, pool, (segment, start, end) -> 
+    {
+      for (int i = start; i < end; i++)
+        for (int k = offsets[i] - counts[i]; k < offsets[i] && k < nParticles; k++)
+          result[k] = i;
+    });
+    return result;
+  }
+  
+  private static void inclusiveScan(double [] values, ForkJoinPool pool)
+  {
+    final int nSegments = nSegments(values.length);
+    final double [] segmentOffsets = new double[nSegments];
+    forEachSegment(values.length, pool, (segment, start, end) -> 
+    {
+      for (int i = start + 1; i < end; i++)
+        values[i] += values[i - 1];
+    });
+    for (int segment = 1; segment < nSegments; segment++)
+      segmentOffsets[segment] = segmentOffsets[segment - 1] + values[segment * SEGMENT_SIZE - 1];
+    forEachSegment(values.length, pool, (segment, start, end) -> 
+    {
+      for (int i = start; i < end; i++)
+        values[i] += segmentOffsets[segment];
+    });
+  }
+  
+  private static void inclusiveScan(int [] values, ForkJoinPool pool)
+  {
+    final int nSegments = nSegments(values.length);
+    final int [] segmentOffsets = new int[nSegments];
+    forEachSegment(values.length, pool, (segment, start, end) -> 
+    {
+      for (int i = start + 1; i < end; i++)
+        values[i] += values[i - 1];
+    });
+    for (int segment = 1; segment < nSegments; segment++)
+      segmentOffsets[segment] = segmentOffsets[segment - 1] + values[segment * SEGMENT_SIZE - 1];
+    forEachSegment(values.length, pool, (segment, start, end) -> 
+    {
+      for (int i = start; i < end; i++)
+        values[i] += segmentOffsets[segment];
+    });
+  }
+  
+  @FunctionalInterface
+  private static interface SegmentAction
+  {
+    public void apply(int segment, int start, int end);
+  }
+  
+  private static int nSegments(int size)
+  {
+    return (size + SEGMENT_SIZE - 1) / SEGMENT_SIZE;
+  }
+  
+  private static void forEachSegment(int size, ForkJoinPool pool, SegmentAction action)
+  {
+    final int nSegments = nSegments(size);
+    final Runnable all = () -> 
+    {
+      final IntStream segments = IntStream.range(0, nSegments);
+      (pool == null ? segments : segments.parallel()).forEach(segment -> 
+        action.apply(segment, segment * SEGMENT_SIZE, Math.min(size, (segment + 1) * SEGMENT_SIZE)));
+    };
+    if (pool == null)
+      all.run();
+    else
+      pool.submit(all).join();
+  }
+  
+  private Resampling() {}
+}
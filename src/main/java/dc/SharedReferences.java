@@ -0,0 +1,98 @@
+package dc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+
+
+
+/**
+ * Lets custom Hazelcast serializers write objects shared by several particles only once per
+ * population (see DCOptions.compactSerialization).
+ *
+ * While a population is serialized, write(..) outputs an object the first time it is encountered,
+ * and a reference to it afterwards; read(..) reverses this. Outside of a population, objects are
+ * always written in full.
+ */
+public final class SharedReferences implements AutoCloseable
+{
+  @FunctionalInterface
+  public static interface Writer<T>
+  {
+    public void write(ObjectDataOutput out, T object) throws IOException;
+  }
+
+  @FunctionalInterface
+  public static interface Reader<T>
+  {
+    public T read(ObjectDataInput in) throws IOException;
+  }
+
+  public static <T> void write(ObjectDataOutput out, T object, Writer<T> writer) throws IOException
+  {
+    final SharedReferences scope = current.get();
+    if (scope == null)
+    {
+      writer.write(out, object);
+      return;
+    }
+    final Integer reference = scope.written.get(object);
+    if (reference != null)
+    {
+      out.writeInt(reference);
+      return;
+    }
+    out.writeInt(NEW_OBJECT);
+    scope.written.put(object, scope.written.size()); // numbered before its content, as in read()
+    writer.write(out, object);
+  }
+
+  @SuppressWarnings("unchecked")
+  public static <T> T read(ObjectDataInput in, Reader<T> reader) throws IOException
+  {
+    final SharedReferences scope = current.get();
+    if (scope == null)
+      return reader.read(in);
+    final int reference = in.readInt();
+    if (reference != NEW_OBJECT)
+      return (T) scope.read.get(reference);
+    final int index = scope.read.size();
+    scope.read.add(null);
+    final T result = reader.read(in);
+    scope.read.set(index, result);
+    return result;
+  }
+
+  /**
+   * Starts a scope in which shared objects are written once, closed with close().
+   */
+  static SharedReferences open()
+  {
+    final SharedReferences result = new SharedReferences(current.get());
+    current.set(result);
+    return result;
+  }
+
+  @Override
+  public void close()
+  {
+    current.set(enclosing);
+  }
+
+  private static final int NEW_OBJECT = -1;
+  private static final ThreadLocal<SharedReferences> current = new ThreadLocal<>();
+
+  private final SharedReferences enclosing;
+  private final Map<Object, Integer> written = new IdentityHashMap<>();
+  private final List<Object> read = new ArrayList<>();
+
+  private SharedReferences(SharedReferences enclosing)
+  {
+    this.enclosing = enclosing;
+  }
+}
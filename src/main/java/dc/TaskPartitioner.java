@@ -0,0 +1,116 @@
+package dc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToDoubleFunction;
+
+import org.apache.commons.lang3.SerializationUtils;
+
+import bayonet.graphs.DirectedTree;
+
+
+
+/**
+ * Splits the tree into cluster tasks of roughly equal estimated cost (see DCOptions.costBasedPartitioning).
+ *
+ * A node is the root of a task, computing its whole subtree serially, when the cost of its subtree is
+ * below a target cost, the total cost divided by the desired number of tasks. Other nodes get their own
+ * task, combining the populations of their children. Sibling task roots are grouped into tasks of cost
+ * at most the target, so that many small subtrees do not each pay the scheduling overhead.
+ */
+final class TaskPartitioner<N>
+{
+  private final DirectedTree<N> tree;
+  private final Map<N, Double> subtreeCosts = new HashMap<>();
+  private final double targetCost;
+
+  /**
+   * @param nodeCost Estimated cost of computing a node's population from its children populations
+   * @param nTasks The desired number of tasks
+   */
+  TaskPartitioner(DirectedTree<N> tree, ToDoubleFunction<N> nodeCost, int nTasks)
+  {
+    this.tree = tree;
+    this.targetCost = computeSubtreeCosts(tree.getRoot(), nodeCost) / nTasks;
+  }
+
+  boolean isTaskRoot(N node)
+  {
+    return tree.isLeaf(node) || subtreeCosts.get(node) <= targetCost;
+  }
+
+  /**
+   * @return The given sibling task roots, in groups of total cost at most the target cost (except for
+   *   single subtrees above it).
+   */
+  List<List<N>> group(List<N> siblings)
+  {
+    final List<List<N>> result = new ArrayList<>();
+    List<N> current = new ArrayList<>();
+    double currentCost = 0.0;
+    for (N sibling : siblings)
+    {
+      final double cost = subtreeCosts.get(sibling);
+      if (!current.isEmpty() && currentCost + cost > targetCost)
+      {
+        result.add(current);
+        current = new ArrayList<>();
+        currentCost = 0.0;
+      }
+      current.add(sibling);
+      currentCost += cost;
+    }
+    if (!current.isEmpty())
+      result.add(current);
+    return result;
+  }
+
+  /**
+   * The cost of a node estimated from the number of particles and its fan-out: each particle is
+   * proposed from one particle of each child.
+   */
+  static <N> ToDoubleFunction<N> modelCosts(DirectedTree<N> tree, int nParticles)
+  {
+    return node -> nParticles * (1.0 + tree.getChildren(node).size());
+  }
+
+  /**
+   * The cost of each node measured as its proposal time in a local run with fewer particles
+   * (see DCOptions.pilotNParticles).
+   */
+  static <P, N> ToDoubleFunction<N> pilotCosts(DCOptions options, DCProposalFactory<P, N> proposalFactory, DirectedTree<N> tree)
+  {
+    final DCOptions pilotOptions = SerializationUtils.clone(options);
+    pilotOptions.nParticles = options.pilotNParticles;
+    pilotOptions.adaptiveNParticles = false;
+    pilotOptions.outOfCoreDirectory = null;
+    final LocalDC<P, N> pilot = new LocalDC<>(pilotOptions, proposalFactory, tree);
+    final Map<N, Long> times = new ConcurrentHashMap<>();
+    pilot.processorFactories.clear(); // the pilot should not write the output files
+    pilot.addProcessorFactory(new DCProcessorFactory<P, N>() {
+      @Override
+      public DCProcessor<P> build(DCProcessorFactoryContext<P, N> context)
+      {
+        final long start = System.nanoTime();
+        return (populationBeforeResampling, childrenPopulations) ->
+          times.put(context.currentNode, System.nanoTime() - start);
+      }
+      @Override
+      public void close() {}
+    });
+    pilot.start();
+    return node -> times.get(node);
+  }
+
+  private double computeSubtreeCosts(N node, ToDoubleFunction<N> nodeCost)
+  {
+    double result = nodeCost.applyAsDouble(node);
+    for (N child : tree.getChildren(node))
+      result += computeSubtreeCosts(child, nodeCost);
+    subtreeCosts.put(node, result);
+    return result;
+  }
+}
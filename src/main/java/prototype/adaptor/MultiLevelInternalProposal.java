@@ -1,5 +1,7 @@
 package prototype.adaptor;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Random;
 
@@ -12,11 +14,13 @@ import bayonet.distributions.Exponential;
 
 import com.google.common.collect.Lists;
 
+import dc.CounterRandom;
+import dc.DCBatchProposal;
 import dc.DCProposal;
 
 
 
-public final class MultiLevelInternalProposal implements DCProposal<Particle>
+public final class MultiLevelInternalProposal implements DCProposal<Particle>, DCBatchProposal<Particle>
 {
   private final double variancePrior;
   private final Node node;
@@ -33,13 +37,32 @@ public final class MultiLevelInternalProposal implements DCProposal<Particle>
   @Override
   public Pair<Double, Particle> propose(Random random,
       List<Particle> childrenParticles)
+  {
+    final double [] logWeight = new double[1];
+    final Particle newParticle = propose(random, Lists.transform(childrenParticles, Collections::singletonList), 0, logWeight);
+    return Pair.of(logWeight[0], newParticle);
+  }
+  
+  @Override
+  public void propose(Random random, List<List<Particle>> childrenParticles, int start, int end,
+      double [] logWeightUpdates, List<Particle> proposed)
+  {
+    for (int particleIndex = start; particleIndex < end; particleIndex++)
+    {
+      CounterRandom.seek(random, particleIndex);
+      proposed.set(particleIndex, propose(random, childrenParticles, particleIndex, logWeightUpdates));
+    }
+  }
+  
+  private Particle propose(Random random, List<List<Particle>> childrenParticles, int particleIndex, double [] logWeightUpdates)
   {
     final double variance = Exponential.generate(random, variancePrior);
-    List<BrownianModelCalculator> sampledCalculators = Lists.newArrayList();
+    List<BrownianModelCalculator> sampledCalculators = new ArrayList<>(childrenParticles.size()); // kept by the new particle
     double descParticleObsLogl = 0.0;
     double descVar = Exponential.logDensity(variance, variancePrior);
-    for (Particle childParticle : childrenParticles)
+    for (List<Particle> childParticles : childrenParticles)
     {
+      final Particle childParticle = childParticles.get(particleIndex);
       sampledCalculators.add(childParticle.message);
       descParticleObsLogl += childParticle.descendentObservationLogLikelihood;
       descVar += childParticle.descendentVarianceDensity;
@@ -52,12 +75,12 @@ public final class MultiLevelInternalProposal implements DCProposal<Particle>
     for (BrownianModelCalculator childCalculator : sampledCalculators)
       logWeight = logWeight - childCalculator.logLikelihood();
     
-    Particle newParticle = new Particle(combined, variance, sampledCalculators, node, childrenNode, descParticleObsLogl, descVar);
-    return Pair.of(logWeight, newParticle);
+    logWeightUpdates[particleIndex] = logWeight;
+    return new Particle(combined, variance, sampledCalculators, node, childrenNode, descParticleObsLogl, descVar);
   }
   
   public String toString()
   {
     return "internalProposal[" + node + "]";
   }
-}
\ No newline at end of file
+}
@@ -11,11 +11,13 @@ import prototype.smc.BrownianModelCalculator;
 import prototype.smc.DivideConquerMCAlgorithm;
 import prototype.smc.DivideConquerMCAlgorithm.Particle;
 import bayonet.math.SpecialFunctions;
+import dc.CounterRandom;
+import dc.DCBatchProposal;
 import dc.DCProposal;
 
 
 
-public final class MultiLevelLeafProposal implements DCProposal<Particle>
+public final class MultiLevelLeafProposal implements DCProposal<Particle>, DCBatchProposal<Particle>
 {
   private final BetaDistribution beta;
   private final int numberOfTrials;
@@ -33,13 +35,33 @@ public final class MultiLevelLeafProposal implements DCProposal<Particle>
 
   @Override
   public Pair<Double, Particle> propose(Random random, List<Particle> childrenParticles)
+  {
+    final double logWeight = 0.0;
+    return Pair.of(logWeight, propose());  
+  }
+  
+  /**
+   * NB: the random object should be the one beta was created with, as in MultiLevelProposalFactory.
+   */
+  @Override
+  public void propose(Random random, List<List<Particle>> childrenParticles, int start, int end,
+      double [] logWeightUpdates, List<Particle> proposed)
+  {
+    for (int particleIndex = start; particleIndex < end; particleIndex++)
+    {
+      CounterRandom.seek(random, particleIndex);
+      logWeightUpdates[particleIndex] = 0.0;
+      proposed.set(particleIndex, propose());
+    }
+  }
+  
+  private Particle propose()
   {
     final double proposed = beta.sample();
     final double logPi = DivideConquerMCAlgorithm.logBinomialPr(numberOfTrials, numberOfSuccesses, proposed);
     final double transformed = SpecialFunctions.logit(proposed);
-    final double logWeight = 0.0;
     final BrownianModelCalculator leaf = BrownianModelCalculator.observation(new double[]{transformed}, 1, false);
-    return Pair.of(logWeight, new Particle(leaf, node, logPi));  
+    return new Particle(leaf, node, logPi);
   }
   
   public String toString()
@@ -20,7 +20,7 @@ import dc.DCProposalFactory;
 public final class MultiLevelProposalFactory implements DCProposalFactory<Particle,Node>
 {
   @Option(required = true)
-  public File dataFile = null;
+  public transient File dataFile = null; // NB: transient so that runs on updated data can reuse checkpoints, see dataHash()
   
   @Option
   public double variancePrior = 1.0;
@@ -50,4 +50,11 @@ public final class MultiLevelProposalFactory implements DCProposalFactory<Partic
     else
       return new MultiLevelInternalProposal(variancePrior, currentNode, childrenNodes);
   }
+
+  @Override
+  public long dataHash(Node node)
+  {
+    final Datum datum = getDataset().getDatum(node);
+    return datum == null ? -1L : ((long) datum.numberOfTrials << 32) | (datum.numberOfSuccesses & 0xFFFFFFFFL);
+  }
 }
\ No newline at end of file
@@ -0,0 +1,128 @@
+package prototype.adaptor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import prototype.Node;
+import prototype.smc.BrownianModelCalculator;
+import prototype.smc.DivideConquerMCAlgorithm.Particle;
+
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.StreamSerializer;
+
+import dc.DistributedDC;
+import dc.SharedReferences;
+
+
+
+/**
+ * Compact Hazelcast serializers for the multi-level model's particles (see DCOptions.compactSerialization).
+ * Nodes and messages shared by several particles are written once per population.
+ */
+public final class MultiLevelSerializers
+{
+  public static void addTo(DistributedDC<Particle, Node> dc)
+  {
+    dc.addSerializer(Node.class, new NodeSerializer());
+    dc.addSerializer(Particle.class, new ParticleSerializer());
+    dc.addSerializer(BrownianModelCalculator.class, new BrownianModelCalculator.Serializer());
+  }
+  
+  public static final class NodeSerializer implements StreamSerializer<Node>
+  {
+    public static final int TYPE_ID = 101;
+
+    @Override
+    public void write(ObjectDataOutput out, Node node) throws IOException
+    {
+      SharedReferences.write(out, node, (o, n) -> 
+      {
+        o.writeInt(n.path.size());
+        for (String item : n.path)
+          o.writeUTF(item);
+      });
+    }
+
+    @Override
+    public Node read(ObjectDataInput in) throws IOException
+    {
+      return SharedReferences.read(in, i -> 
+      {
+        final int size = i.readInt();
+        final List<String> path = new ArrayList<>(size);
+        for (int index = 0; index < size; index++)
+          path.add(i.readUTF());
+        return new Node(path);
+      });
+    }
+
+    @Override
+    public int getTypeId()
+    {
+      return TYPE_ID;
+    }
+
+    @Override
+    public void destroy() {}
+  }
+  
+  public static final class ParticleSerializer implements StreamSerializer<Particle>
+  {
+    public static final int TYPE_ID = 102;
+
+    @Override
+    public void write(ObjectDataOutput out, Particle particle) throws IOException
+    {
+      out.writeObject(particle.message);
+      out.writeDouble(particle.variance);
+      writeList(out, particle.childrenMessages);
+      out.writeObject(particle.node);
+      writeList(out, particle.childrenNodes);
+      out.writeDouble(particle.descendentObservationLogLikelihood);
+      out.writeDouble(particle.descendentVarianceDensity);
+    }
+
+    @Override
+    public Particle read(ObjectDataInput in) throws IOException
+    {
+      final BrownianModelCalculator message = in.readObject();
+      final double variance = in.readDouble();
+      final List<BrownianModelCalculator> childrenMessages = readList(in);
+      final Node node = in.readObject();
+      final List<Node> childrenNodes = readList(in);
+      return new Particle(message, variance, childrenMessages, node, childrenNodes, in.readDouble(), in.readDouble());
+    }
+
+    @Override
+    public int getTypeId()
+    {
+      return TYPE_ID;
+    }
+
+    @Override
+    public void destroy() {}
+  }
+  
+  private static void writeList(ObjectDataOutput out, List<?> list) throws IOException
+  {
+    out.writeInt(list.size());
+    for (Object item : list)
+      out.writeObject(item);
+  }
+  
+  private static <T> List<T> readList(ObjectDataInput in) throws IOException
+  {
+    final int size = in.readInt();
+    if (size == 0)
+      return Collections.emptyList();
+    final List<T> result = new ArrayList<>(size);
+    for (int i = 0; i < size; i++)
+      result.add(in.readObject());
+    return result;
+  }
+  
+  private MultiLevelSerializers() {}
+}
@@ -1,14 +1,19 @@
 package prototype.smc;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
 
 import com.beust.jcommander.internal.Lists;
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.StreamSerializer;
 
 import bayonet.distributions.Normal;
 import briefj.opt.Option;
+import dc.SharedReferences;
 
 
 public class BrownianModelCalculator implements Serializable
@@ -145,4 +150,42 @@ public class BrownianModelCalculator implements Serializable
   private static double[] getNewMessage (final int nsites) {
     return new double[nsites];
   }
+  
+  /**
+   * Compact Hazelcast serializer, writing messages shared by several particles once per population 
+   * (see dc.SharedReferences).
+   */
+  public static final class Serializer implements StreamSerializer<BrownianModelCalculator>
+  {
+    public static final int TYPE_ID = 103;
+    
+    @Override
+    public void write(ObjectDataOutput out, BrownianModelCalculator calculator) throws IOException
+    {
+      SharedReferences.write(out, calculator, (o, c) -> {
+        o.writeDoubleArray(c.message);
+        o.writeDouble(c.messageVariance);
+        o.writeInt(c.nsites);
+        o.writeDouble(c.loglikelihood);
+        o.writeDouble(c.lognorm);
+        o.writeBoolean(c.resampleRoot);
+      });
+    }
+
+    @Override
+    public BrownianModelCalculator read(ObjectDataInput in) throws IOException
+    {
+      return SharedReferences.read(in, i -> new BrownianModelCalculator(
+          i.readDoubleArray(), i.readDouble(), i.readInt(), i.readDouble(), i.readDouble(), i.readBoolean()));
+    }
+
+    @Override
+    public int getTypeId()
+    {
+      return TYPE_ID;
+    }
+
+    @Override
+    public void destroy() {}
+  }
 }
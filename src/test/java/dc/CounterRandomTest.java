@@ -0,0 +1,48 @@
+package dc;
+
+import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+
+public class CounterRandomTest
+{
+  @Test
+  public void testParticleStreamsDoNotDependOnPreviousDraws()
+  {
+    final CounterRandom random = new CounterRandom(31);
+    random.seekParticle(7);
+    final double first = random.nextDouble();
+    final double gaussian = random.nextGaussian();
+    
+    final CounterRandom other = new CounterRandom(31);
+    other.nextGaussian();
+    other.seekParticle(3);
+    other.nextInt(10);
+    other.seekParticle(7);
+    Assert.assertEquals(first, other.nextDouble(), 0.0);
+    Assert.assertEquals(gaussian, other.nextGaussian(), 0.0);
+    
+    other.seekParticle(8);
+    Assert.assertNotEquals(first, other.nextDouble(), 0.0);
+    Assert.assertNotEquals(first, random.split(7).nextDouble(), 0.0);
+  }
+  
+  @Test
+  public void testMoments()
+  {
+    final CounterRandom random = new CounterRandom(1);
+    final SummaryStatistics uniforms = new SummaryStatistics(), gaussians = new SummaryStatistics();
+    for (int i = 0; i < 100_000; i++)
+    {
+      random.seekParticle(i);
+      uniforms.addValue(random.nextDouble());
+      gaussians.addValue(random.nextGaussian());
+    }
+    Assert.assertEquals(0.5, uniforms.getMean(), 0.01);
+    Assert.assertEquals(1.0 / 12.0, uniforms.getVariance(), 0.01);
+    Assert.assertEquals(0.0, gaussians.getMean(), 0.01);
+    Assert.assertEquals(1.0, gaussians.getVariance(), 0.02);
+  }
+}
@@ -0,0 +1,62 @@
+package dc;
+
+import static dc.TestUtilities.perfectBinaryTree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import prototype.Node;
+import bayonet.graphs.DirectedTree;
+
+
+
+public class CriticalPathSchedulerTest
+{
+  @Test
+  public void testLongestCriticalPathFirst() throws InterruptedException
+  {
+    // a chain of depth 3 below the root, and a leaf
+    final Node root = new Node(Collections.singletonList("0"));
+    final DirectedTree<Node> tree = new DirectedTree<Node>(root);
+    final Node leaf = root.child("leaf"), chain1 = root.child("chain"), chain2 = chain1.child("1"), chain3 = chain2.child("2");
+    for (Node [] edge : new Node[][]{{root, leaf}, {root, chain1}, {chain1, chain2}, {chain2, chain3}})
+      tree.addChild(edge[0], edge[1]);
+    final CriticalPathScheduler<Node> scheduler = new CriticalPathScheduler<>(tree, TaskPartitioner.modelCosts(tree, 1000), 1);
+    
+    // keep the only thread busy until all tasks are received
+    final CountDownLatch received = new CountDownLatch(1);
+    scheduler.execute(root, false, () -> { try { received.await(); } catch (InterruptedException e) { throw new RuntimeException(e); } });
+    final List<Node> order = Collections.synchronizedList(new ArrayList<>());
+    final CountDownLatch done = new CountDownLatch(3);
+    for (Node node : new Node[]{leaf, chain2, chain3})
+      scheduler.execute(node, false, () -> { order.add(node); done.countDown(); });
+    received.countDown();
+    done.await();
+    scheduler.close();
+    
+    Assert.assertEquals(Arrays.asList(chain3, chain2, leaf), order);
+    Assert.assertTrue(scheduler.criticalPath(chain1, true) > scheduler.criticalPath(chain1, false));
+  }
+  
+  @Test
+  public void testSchedulingDoesNotChangeOutput()
+  {
+    final DirectedTree<Node> tree = perfectBinaryTree(4);
+    final DCProposalFactory<Integer, Node> factory = Doc.markovChainNaiveProposalFactory(Doc.transition, Doc.prior);
+    DCOptions options = new DCOptions();
+    options.nThreadsPerNode = 3;
+    options.criticalPathScheduling = true;
+    
+    final DistributedDC<Integer, Node> distributed = DistributedDC.createInstance(options, factory, tree);
+    distributed.start();
+    final LocalDC<Integer, Node> local = new LocalDC<>(options, factory, tree);
+    local.start();
+    DCRecursionTest.assertIdentical(local.getRootPopulation(), distributed.getRootPopulation());
+  }
+}
@@ -0,0 +1,332 @@
+package dc;
+
+import static dc.TestUtilities.perfectBinaryTree;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Assert;
+import org.junit.Test;
+
+import prototype.Node;
+import bayonet.graphs.DirectedTree;
+import bayonet.smc.ParticlePopulation;
+
+
+
+public class DCRecursionTest
+{
+  @Test
+  public void testBlockProposalsDoNotDependOnThreads()
+  {
+    DCOptions options = new DCOptions();
+    options.nParticles = 10_000;
+    options.proposalBlockSize = 1_000;
+    options.relativeEssThreshold = 0.5;
+
+    final ParticlePopulation<Integer> serial = recurse(options, null);
+    final ForkJoinPool pool = new ForkJoinPool(4);
+    final ParticlePopulation<Integer> parallel = recurse(options, pool);
+    pool.shutdown();
+
+    assertIdentical(serial, parallel);
+  }
+
+  @Test
+  public void testOutOfCoreMatchesInMemory() throws IOException
+  {
+    DCOptions options = new DCOptions();
+    options.nParticles = 10_000;
+    options.proposalBlockSize = 1_000;
+    options.relativeEssThreshold = 0.5;
+    final ParticlePopulation<Integer> inMemory = recurse(options, null);
+    
+    options.outOfCoreDirectory = Files.createTempDirectory("outOfCore").toFile();
+    options.outOfCoreChunkSize = 3_000;
+    final ForkJoinPool pool = new ForkJoinPool(4);
+    final ParticlePopulation<Integer> outOfCore = recurse(options, pool);
+    pool.shutdown();
+    
+    assertIdentical(inMemory, outOfCore);
+    OutOfCoreParticleList.deleteIfOutOfCore(outOfCore.particles);
+    Assert.assertEquals(0, options.outOfCoreDirectory.list().length);
+  }
+  
+  @Test
+  public void testOutOfCoreMapsLargeChunksInWindows() throws IOException
+  {
+    final File directory = Files.createTempDirectory("outOfCore").toFile();
+    // windows of a few pages, as for chunk files larger than a mapping
+    final OutOfCoreParticleList<Integer> list = new OutOfCoreParticleList<>(directory, 5_000, 3_000, 8_192);
+    for (int i = 0; i < list.size(); i++)
+      list.set(i, i * 7);
+    for (int i = list.size() - 1; i >= 0; i--)
+      Assert.assertEquals(i * 7, (int) list.get(i));
+    list.delete();
+  }
+
+  @Test
+  public void testIntPathMatchesBoxedPath()
+  {
+    DCOptions options = new DCOptions();
+    options.nParticles = 10_000;
+    options.relativeEssThreshold = 0.5;
+
+    final ParticlePopulation<Integer> boxed = recurse(options, null);
+    final DirectedTree<Node> tree = perfectBinaryTree(3);
+    final IntParticlePopulation primitive = recurseInt(options, tree, tree.getRoot());
+
+    Assert.assertEquals(boxed.particles, primitive.toParticlePopulation().particles);
+    Assert.assertEquals(boxed.logNormEstimate(), primitive.logNormEstimate(), 1e-8);
+  }
+
+  @Test
+  public void testBatchProposalMatchesSingleProposal()
+  {
+    DCOptions options = new DCOptions();
+    options.nParticles = 10_000;
+    options.relativeEssThreshold = 0.5;
+
+    final DirectedTree<Node> tree = perfectBinaryTree(3);
+    final DCProposalFactory<Integer, Node> single = Doc.markovChainNaiveProposalFactory(Doc.transition, Doc.prior);
+    final DCProposalFactory<Integer, Node> batch = (random, node, children) -> 
+      new BatchProposal(single.build(random, node, children));
+    
+    assertIdentical(
+        recurse(options, null, tree, single, tree.getRoot()), 
+        recurse(options, null, tree, batch, tree.getRoot()));
+  }
+  
+  @Test
+  public void testNativeBatchProposalMatchesSingleProposal()
+  {
+    for (boolean counterBasedRandom : new boolean[]{false, true})
+    {
+      DCOptions options = new DCOptions();
+      options.nParticles = 10_000;
+      options.relativeEssThreshold = 0.5;
+      options.counterBasedRandom = counterBasedRandom;
+
+      final DirectedTree<Node> tree = perfectBinaryTree(3);
+      final DCProposalFactory<Integer, Node> single = Doc.markovChainNaiveProposalFactory(Doc.transition, Doc.prior);
+      final DCProposalFactory<Integer, Node> batch = (random, node, children) -> children.isEmpty() ?
+          single.build(random, node, children) :
+          Doc.markovChainNaiveBatchProposal(Doc.transition, Doc.prior);
+
+      assertIdentical(
+          recurse(options, null, tree, single, tree.getRoot()),
+          recurse(options, null, tree, batch, tree.getRoot()));
+    }
+  }
+
+  @Test
+  public void testMixtureMerging() throws IOException
+  {
+    final double exactLogZ = -3.600962588536195; // see Doc.testMarkovChainExample
+    for (MergeScheme mergeScheme : MergeScheme.values())
+    {
+      DCOptions options = new DCOptions();
+      options.nParticles = 20_000;
+      options.proposalBlockSize = 1_000;
+      options.mergeScheme = mergeScheme;
+      
+      final ParticlePopulation<Integer> serial = recurse(options, null);
+      Assert.assertEquals(exactLogZ, serial.logNormEstimate(), 0.05);
+      
+      final ForkJoinPool pool = new ForkJoinPool(4);
+      assertIdentical(serial, recurse(options, pool));
+      
+      options.outOfCoreDirectory = Files.createTempDirectory("outOfCore").toFile();
+      options.outOfCoreChunkSize = 3_000;
+      final ParticlePopulation<Integer> outOfCore = recurse(options, pool);
+      assertIdentical(serial, outOfCore);
+      OutOfCoreParticleList.deleteIfOutOfCore(outOfCore.particles);
+      pool.shutdown();
+    }
+  }
+  
+  @Test
+  public void testCounterBasedRandomDoesNotDependOnBlocksOrThreads()
+  {
+    final double exactLogZ = -3.600962588536195; // see Doc.testMarkovChainExample
+    for (MergeScheme mergeScheme : MergeScheme.values())
+    {
+      DCOptions options = new DCOptions();
+      options.nParticles = 20_000;
+      options.counterBasedRandom = true;
+      options.mergeScheme = mergeScheme;
+      
+      final ParticlePopulation<Integer> serial = recurse(options, null);
+      Assert.assertEquals(exactLogZ, serial.logNormEstimate(), 0.05);
+      
+      final ForkJoinPool pool = new ForkJoinPool(4);
+      assertIdentical(serial, recurse(options, pool));
+      options.proposalBlockSize = 777;
+      assertIdentical(serial, recurse(options, pool));
+      assertIdentical(serial, recurse(options, null));
+      pool.shutdown();
+    }
+  }
+  
+  @Test
+  public void testCounterBasedIntPathMatchesBoxedPath()
+  {
+    DCOptions options = new DCOptions();
+    options.nParticles = 10_000;
+    options.relativeEssThreshold = 0.5;
+    options.counterBasedRandom = true;
+
+    final ParticlePopulation<Integer> boxed = recurse(options, null);
+    final DirectedTree<Node> tree = perfectBinaryTree(3);
+    options.proposalBlockSize = 1_000;
+    final IntParticlePopulation primitive = recurseInt(options, tree, tree.getRoot());
+
+    Assert.assertEquals(boxed.particles, primitive.toParticlePopulation().particles);
+    Assert.assertEquals(boxed.logNormEstimate(), primitive.logNormEstimate(), 1e-8);
+  }
+  
+  @Test
+  public void testParallelResamplingIntPathMatchesBoxedPath()
+  {
+    DCOptions options = new DCOptions();
+    options.nParticles = 10_000;
+    options.relativeEssThreshold = 0.5;
+    options.parallelResamplingScheme = ParallelResamplingScheme.SYSTEMATIC;
+
+    final ParticlePopulation<Integer> boxed = recurse(options, null);
+    final DirectedTree<Node> tree = perfectBinaryTree(3);
+    final IntParticlePopulation primitive = recurseInt(options, tree, tree.getRoot());
+
+    Assert.assertEquals(boxed.particles, primitive.toParticlePopulation().particles);
+    Assert.assertEquals(boxed.logNormEstimate(), primitive.logNormEstimate(), 1e-8);
+  }
+  
+  @Test
+  public void testAdaptiveNParticles()
+  {
+    DCOptions options = new DCOptions();
+    options.adaptiveNParticles = true;
+    options.minNParticles = 1_000;
+    options.targetLogZVariance = 0.0001;
+    
+    final ParticlePopulation<Integer> root = recurse(options, null);
+    Assert.assertTrue(root.nParticles() > options.minNParticles);
+    Assert.assertTrue(root.nParticles() <= options.maxNParticles);
+    Assert.assertEquals(-3.600962588536195, root.logNormEstimate(), 0.05);
+  }
+  
+  private static final class BatchProposal implements DCProposal<Integer>, DCBatchProposal<Integer>
+  {
+    private final DCProposal<Integer> single;
+    
+    BatchProposal(DCProposal<Integer> single)
+    {
+      this.single = single;
+    }
+
+    @Override
+    public Pair<Double, Integer> propose(Random random, List<Integer> childrenParticles)
+    {
+      throw new RuntimeException(); // DCRecursion should use the batch version
+    }
+
+    @Override
+    public void propose(Random random, List<List<Integer>> childrenParticles, int start, int end,
+        double [] logWeightUpdates, List<Integer> proposed)
+    {
+      final List<Integer> current = new ArrayList<>();
+      for (int i = start; i < end; i++)
+      {
+        current.clear();
+        for (List<Integer> child : childrenParticles)
+          current.add(child.get(i));
+        final Pair<Double, Integer> pair = single.propose(random, current);
+        logWeightUpdates[i] = pair.getLeft();
+        proposed.set(i, pair.getRight());
+      }
+    }
+  }
+
+  /**
+   * Same model and random draws as Doc.markovChainNaiveProposalFactory.
+   */
+  private static IntParticlePopulation recurseInt(DCOptions options, DirectedTree<Node> tree, Node node)
+  {
+    final int nStates = Doc.transition.nRows();
+    final List<IntParticlePopulation> childrenPopulations = new ArrayList<>();
+    for (Node child : tree.getChildren(node))
+      childrenPopulations.add(recurseInt(options, tree, child));
+    final IntDCProposal proposal = tree.isLeaf(node) ?
+        (random, children, proposed, index) -> { proposed[index] = 0; return Math.log(Doc.prior.get(0, 0)); } :
+        (random, children, proposed, index) ->
+        {
+          final int state = random.nextInt(nStates);
+          double weightUpdate = nStates;
+          weightUpdate *= Doc.prior.get(state, 0);
+          for (int childState : children)
+          {
+            weightUpdate *= Doc.transition.get(state, childState);
+            weightUpdate /= Doc.prior.get(state, 0);
+          }
+          proposed[index] = state;
+          return Math.log(weightUpdate);
+        };
+    final Random random = random(options, node);
+    return DCRecursion.dcRecurseInt(random, options, childrenPopulations, proposalRandom -> proposal, null);
+  }
+
+  private static Random random(DCOptions options, Node node)
+  {
+    final long seed = options.masterRandomSeed * 31 + node.hashCode();
+    return options.counterBasedRandom ? new CounterRandom(seed) : new Random(seed);
+  }
+
+  static void assertIdentical(ParticlePopulation<Integer> expected, ParticlePopulation<Integer> actual)
+  {
+    Assert.assertEquals(expected.particles, actual.particles);
+    for (int i = 0; i < expected.nParticles(); i++)
+      Assert.assertEquals(expected.getNormalizedWeight(i), actual.getNormalizedWeight(i), 0.0);
+    Assert.assertEquals(expected.logScaling, actual.logScaling, 0.0);
+  }
+
+  /**
+   * A serial DC recursion over a small tree, using the Markov chain example in Doc.
+   */
+  static ParticlePopulation<Integer> recurse(DCOptions options, ForkJoinPool pool)
+  {
+    final DirectedTree<Node> tree = perfectBinaryTree(3);
+    final DCProposalFactory<Integer, Node> factory = Doc.markovChainNaiveProposalFactory(Doc.transition, Doc.prior);
+    return recurse(options, pool, tree, factory, tree.getRoot());
+  }
+
+  static ParticlePopulation<Integer> recurse(
+      DCOptions options,
+      ForkJoinPool pool,
+      DirectedTree<Node> tree,
+      DCProposalFactory<Integer, Node> factory,
+      Node node)
+  {
+    final List<Node> childrenNodes = new ArrayList<>(tree.getChildren(node));
+    final List<ParticlePopulation<Integer>> childrenPopulations = new ArrayList<>();
+    for (Node child : childrenNodes)
+      childrenPopulations.add(recurse(options, pool, tree, factory, child));
+    final Random random = random(options, node);
+    final ParticlePopulation<Integer> result = DCRecursion.dcRecurse(
+        random,
+        options,
+        childrenPopulations,
+        proposalRandom -> factory.build(proposalRandom, node, childrenNodes),
+        Collections.emptyList(),
+        pool);
+    for (ParticlePopulation<Integer> childPopulation : childrenPopulations)
+      OutOfCoreParticleList.deleteIfOutOfCore(childPopulation.particles); // as in AbstractDC
+    return result;
+  }
+}
@@ -3,6 +3,9 @@ package dc;
 import static dc.TestUtilities.computeExactLogZ;
 import static dc.TestUtilities.perfectBinaryTree;
 
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
 import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
 
 import bayonet.graphs.DirectedTree;
@@ -20,6 +23,9 @@ public class DiscreteExample implements Runnable
   @Option 
   public int depth = 5;
   
+  @Option(gloss = "Number of trials running at the same time, sharing one cluster member")
+  public int nConcurrentRuns = 4;
+  
   public static void main(String [] args)
   {
     Mains.instrumentedRun(args, new DiscreteExample());
@@ -40,29 +46,36 @@ public class DiscreteExample implements Runnable
     DCProposalFactory<Integer, Node> proposalFactory = 
         Doc.markovChainNaiveProposalFactory(transition, prior);
     
-    DCOptions options = new DCOptions();
-    options.nThreadsPerNode = 4; 
 //    options.nParticles = 1_000_000;
 //    options.masterRandomSeed = 31; // Note: given the seed, output is deterministic even if distributed and/or parallelized
 //    options.resamplingScheme = ResamplingScheme.MULTINOMIAL; // currently supported: STRATIFIED and MULTINOMIAL (default)
 //    options.relativeEssThreshold = 0.5;
     
+    final ForkJoinPool runs = new ForkJoinPool(nConcurrentRuns);
     for (int nParticles = 10; nParticles < 100_000; nParticles *= 2)
     {
+      final int currentNParticles = nParticles;
       SummaryStatistics mse = new SummaryStatistics();
-      for (int trial = 0; trial < 100; trial++)
+      // trials are independent runs, executed concurrently (see DistributedDC.createInstance)
+      runs.submit(() -> IntStream.range(0, 100).parallel().forEach(trial ->
       {
+        DCOptions options = new DCOptions();
+        options.nThreadsPerNode = 4; 
         options.masterRandomSeed = 31 + 100*trial;
-        options.nParticles = nParticles;
+        options.nParticles = currentNParticles;
         DistributedDC<Integer, Node> ddc = DistributedDC.createInstance(options, proposalFactory, tree);
         ddc.start();
         final double logZEstimate = ddc.getRootPopulation().logNormEstimate();
         final double squareError = (logZEstimate - exactLogZ) * (logZEstimate - exactLogZ);
-        mse.addValue(squareError);
-        output.write("details", "nParticles", nParticles, "trial", trial, "logZEstimate", logZEstimate, "trueLogZ", exactLogZ);
-      }
+        synchronized (output)
+        {
+          mse.addValue(squareError);
+          output.write("details", "nParticles", currentNParticles, "trial", trial, "logZEstimate", logZEstimate, "trueLogZ", exactLogZ);
+        }
+      })).join();
       output.write("mse", "nParticles", nParticles, "mse");
     }
+    runs.shutdown();
     
     // start based on Doc
     
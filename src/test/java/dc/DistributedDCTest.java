@@ -0,0 +1,479 @@
+package dc;
+
+import static dc.TestUtilities.perfectBinaryTree;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Assert;
+import org.junit.Test;
+
+import prototype.Node;
+import bayonet.graphs.DirectedTree;
+import bayonet.smc.ParticlePopulation;
+
+import com.hazelcast.core.DistributedObject;
+
+
+
+public class DistributedDCTest
+{
+  @Test
+  public void testConcurrentRuns() throws Exception
+  {
+    final DirectedTree<Node> tree = perfectBinaryTree(4);
+    final DCProposalFactory<Integer, Node> factory = Doc.markovChainNaiveProposalFactory(Doc.transition, Doc.prior);
+    
+    final List<DistributedDC<Integer, Node>> distributed = new ArrayList<>();
+    final List<LocalDC<Integer, Node>> local = new ArrayList<>();
+    for (int run = 0; run < 3; run++)
+    {
+      DCOptions options = new DCOptions();
+      options.nThreadsPerNode = 2;
+      options.nParticles = 5_000;
+      options.masterRandomSeed = 31 + run;
+      
+      final DistributedDC<Integer, Node> current = DistributedDC.createInstance(options, factory, tree);
+      distributed.add(current);
+      local.add(new LocalDC<>(options, factory, tree));
+    }
+    final List<Future<ParticlePopulation<Integer>>> roots = new ArrayList<>();
+    for (DistributedDC<Integer, Node> run : distributed)
+      roots.add(run.startAsync());
+    
+    for (int run = 0; run < 3; run++)
+    {
+      local.get(run).start();
+      DCRecursionTest.assertIdentical(local.get(run).getRootPopulation(), roots.get(run).get());
+    }
+  }
+  
+  @Test
+  public void testFinishedRunReleasesClusterObjects() throws Exception
+  {
+    final DCProposalFactory<Integer, Node> factory = Doc.markovChainNaiveProposalFactory(Doc.transition, Doc.prior);
+    DCOptions longOptions = new DCOptions();
+    longOptions.nParticles = 20_000;
+    final DistributedDC<Integer, Node> longRun = DistributedDC.createInstance(longOptions, factory, perfectBinaryTree(8));
+    final Future<ParticlePopulation<Integer>> longRoot = longRun.startAsync();
+    
+    // sharing the member of the long run, with its own number of threads
+    DCOptions shortOptions = new DCOptions();
+    shortOptions.nThreadsPerNode = 2;
+    shortOptions.masterRandomSeed = 32;
+    final DistributedDC<Integer, Node> shortRun = DistributedDC.createInstance(shortOptions, factory, perfectBinaryTree(2));
+    shortRun.start();
+    
+    // a run needing a differently configured member is rejected
+    DCOptions incompatibleOptions = new DCOptions();
+    incompatibleOptions.tcpIpMembers = "127.0.0.1";
+    incompatibleOptions.masterRandomSeed = 33;
+    try
+    {
+      DistributedDC.createInstance(incompatibleOptions, factory, perfectBinaryTree(2)).start();
+      Assert.fail();
+    }
+    catch (RuntimeException e) {}
+    
+    Assert.assertFalse(longRoot.isDone());
+    for (DistributedObject object : longRun.cluster.getDistributedObjects())
+      Assert.assertFalse(object.getName(), object.getName().contains(shortRun.runId));
+    longRoot.get();
+  }
+  
+  @Test
+  public void testFailedSetupReleasesMember()
+  {
+    final DirectedTree<Node> tree = perfectBinaryTree(2);
+    DCOptions options = new DCOptions();
+    options.costBasedPartitioning = true;
+    options.pilotNParticles = 100; // the pilot run fails during setup, once the member is created
+    final DistributedDC<Integer, Node> run = DistributedDC.createInstance(options, 
+        (random, node, children) -> { throw new RuntimeException("failing proposal"); }, tree);
+    try
+    {
+      run.start();
+      Assert.fail();
+    }
+    catch (RuntimeException e) {}
+    Assert.assertFalse(run.cluster.getLifecycleService().isRunning());
+  }
+  
+  @Test
+  public void testFixedPort()
+  {
+    DCOptions options = new DCOptions();
+    options.nParticles = 100;
+    options.port = 5799;
+    final DistributedDC<Integer, Node> run = DistributedDC.createInstance(options, 
+        Doc.markovChainNaiveProposalFactory(Doc.transition, Doc.prior), perfectBinaryTree(2));
+    final AtomicInteger port = new AtomicInteger();
+    run.addProcessorFactory(new DCProcessorFactory<Integer, Node>() {
+      @Override
+      public DCProcessor<Integer> build(DCProcessorFactoryContext<Integer, Node> context)
+      {
+        port.set(run.cluster.getCluster().getLocalMember().getSocketAddress().getPort());
+        return new NoOpProcessor<>();
+      }
+      @Override
+      public void close() {}
+    });
+    run.start();
+    Assert.assertEquals(5799, port.get());
+  }
+  
+  @Test(timeout = 120_000)
+  public void testTaskFailureFailsRun()
+  {
+    final DirectedTree<Node> tree = perfectBinaryTree(4);
+    final DCProposalFactory<Integer, Node> factory = Doc.markovChainNaiveProposalFactory(Doc.transition, Doc.prior);
+    final Node failing = tree.getChildren(tree.getRoot()).iterator().next();
+    DCOptions options = new DCOptions();
+    options.nThreadsPerNode = 2;
+    options.nParticles = 1_000;
+    final DistributedDC<Integer, Node> run = DistributedDC.createInstance(options, 
+        (random, node, children) -> 
+        {
+          if (node.equals(failing))
+            throw new RuntimeException("failing proposal");
+          return factory.build(random, node, children);
+        }, tree);
+    try
+    {
+      run.start();
+      Assert.fail();
+    }
+    catch (RuntimeException e)
+    {
+      Assert.assertTrue(e.getMessage(), e.getMessage().contains("failing proposal"));
+    }
+  }
+  
+  @Test
+  public void testResubmittedTaskIsSkipped()
+  {
+    final DirectedTree<Node> tree = perfectBinaryTree(4);
+    final DCProposalFactory<Integer, Node> factory = Doc.markovChainNaiveProposalFactory(Doc.transition, Doc.prior);
+    final CountingFactory counting = new CountingFactory(factory);
+    DCOptions options = new DCOptions();
+    options.nThreadsPerNode = 2;
+    options.nParticles = 1_000;
+    final AtomicReference<DistributedDC<Integer, Node>> run = new AtomicReference<>();
+    run.set(DistributedDC.createInstance(options, 
+        (random, node, children) -> 
+        {
+          if (node.equals(tree.getRoot()))
+            // as DistributedDC.recover() does when a member is lost after completing these tasks
+            for (Node child : children)
+              new DCRecursionTask<Integer, Node>(run.get().runId, child, !tree.isLeaf(child)).run();
+          return counting.build(random, node, children);
+        }, tree));
+    run.get().start();
+    
+    Assert.assertEquals(tree.getNodes().size(), counting.nBuilt.get());
+    final LocalDC<Integer, Node> local = new LocalDC<>(options, factory, tree);
+    local.start();
+    DCRecursionTest.assertIdentical(local.getRootPopulation(), run.get().getRootPopulation());
+  }
+  
+  @Test
+  public void testCompactSerialization()
+  {
+    DCOptions options = new DCOptions();
+    options.nThreadsPerNode = 2;
+    options.nParticles = 5_000;
+    options.compactSerialization = true;
+    checkSerialization(options);
+  }
+  
+  @Test
+  public void testCompression()
+  {
+    for (boolean compact : new boolean[]{false, true})
+    {
+      DCOptions options = new DCOptions();
+      options.nThreadsPerNode = 2;
+      options.nParticles = 5_000;
+      options.compactSerialization = compact;
+      options.compressPopulations = true;
+      checkSerialization(options);
+    }
+  }
+  
+  @Test
+  public void testResumeFromCheckpoints() throws IOException
+  {
+    final DirectedTree<Node> tree = perfectBinaryTree(4);
+    final CountingFactory factory = new CountingFactory(Doc.markovChainNaiveProposalFactory(Doc.transition, Doc.prior));
+    DCOptions options = new DCOptions();
+    options.nThreadsPerNode = 2;
+    options.nParticles = 5_000;
+    options.checkpointDirectory = Files.createTempDirectory("checkpoints").toFile();
+    
+    final DistributedDC<Integer, Node> first = DistributedDC.createInstance(options, factory, tree);
+    first.start();
+    Assert.assertEquals(tree.getNodes().size(), factory.nBuilt.getAndSet(0));
+    
+    // resuming after losing the checkpoints of the root and one of its children
+    final File runDirectory = options.checkpointDirectory.listFiles()[0];
+    final Node root = tree.getRoot();
+    final Node child = tree.getChildren(root).iterator().next();
+    for (Node removed : new Node[]{root, child})
+      Assert.assertTrue(new File(runDirectory, "node-" + Integer.toHexString(removed.hashCode())).delete());
+    final DistributedDC<Integer, Node> resumed = DistributedDC.createInstance(options, factory, tree);
+    resumed.start();
+    Assert.assertEquals(2, factory.nBuilt.get());
+    
+    final LocalDC<Integer, Node> local = new LocalDC<>(options, factory, tree);
+    local.start();
+    DCRecursionTest.assertIdentical(local.getRootPopulation(), resumed.getRootPopulation());
+  }
+  
+  @Test
+  public void testIncrementalRecomputation() throws IOException
+  {
+    final DirectedTree<Node> tree = perfectBinaryTree(4);
+    final ObservedLeavesFactory observed = new ObservedLeavesFactory(tree);
+    final CountingFactory factory = new CountingFactory(observed);
+    DCOptions options = new DCOptions();
+    options.nThreadsPerNode = 2;
+    options.nParticles = 5_000;
+    options.checkpointDirectory = Files.createTempDirectory("checkpoints").toFile();
+    
+    final DistributedDC<Integer, Node> first = DistributedDC.createInstance(options, factory, tree);
+    first.start();
+    Assert.assertEquals(tree.getNodes().size(), factory.nBuilt.getAndSet(0));
+    
+    // new data for one leaf: only the leaf and its ancestors are recomputed
+    Node leaf = tree.getRoot();
+    while (!tree.isLeaf(leaf))
+      leaf = tree.getChildren(leaf).iterator().next();
+    observed.observations.put(leaf, 1);
+    final DistributedDC<Integer, Node> updated = DistributedDC.createInstance(options, factory, tree);
+    Assert.assertNotEquals(first.runId, updated.runId);
+    updated.start();
+    Assert.assertEquals(5, factory.nBuilt.get());
+    
+    final LocalDC<Integer, Node> local = new LocalDC<>(options, observed, tree);
+    local.start();
+    DCRecursionTest.assertIdentical(local.getRootPopulation(), updated.getRootPopulation());
+  }
+  
+  @Test
+  public void testSwappedDataIsRecomputed() throws IOException
+  {
+    final DirectedTree<Node> tree = perfectBinaryTree(4);
+    final ObservedLeavesFactory observed = new ObservedLeavesFactory(tree);
+    final CountingFactory factory = new CountingFactory(observed);
+    DCOptions options = new DCOptions();
+    options.nThreadsPerNode = 2;
+    options.nParticles = 5_000;
+    options.checkpointDirectory = Files.createTempDirectory("checkpoints").toFile();
+    
+    // two leaves whose closest common ancestor is the root
+    Node first = tree.getRoot(), last = tree.getRoot();
+    while (!tree.isLeaf(first))
+      first = tree.getChildren(first).iterator().next();
+    while (!tree.isLeaf(last))
+      for (Node child : tree.getChildren(last))
+        last = child;
+    observed.observations.put(first, 1);
+    DistributedDC.createInstance(options, factory, tree).start();
+    factory.nBuilt.set(0);
+    
+    // swapping their data changes the subtrees of all their ancestors, up to the root
+    observed.observations.put(first, 0);
+    observed.observations.put(last, 1);
+    final DistributedDC<Integer, Node> swapped = DistributedDC.createInstance(options, factory, tree);
+    swapped.start();
+    Assert.assertEquals(9, factory.nBuilt.get());
+    
+    final LocalDC<Integer, Node> local = new LocalDC<>(options, observed, tree);
+    local.start();
+    DCRecursionTest.assertIdentical(local.getRootPopulation(), swapped.getRootPopulation());
+  }
+  
+  @Test
+  public void testMemoryBudget()
+  {
+    final DirectedTree<Node> tree = perfectBinaryTree(6);
+    final DCProposalFactory<Integer, Node> factory = Doc.markovChainNaiveProposalFactory(Doc.transition, Doc.prior);
+    DCOptions options = new DCOptions();
+    options.nThreadsPerNode = 4;
+    options.nParticles = 5_000;
+    options.memoryBudgetMB = 1; // a few populations only, delaying most subtrees
+    
+    final DistributedDC<Integer, Node> distributed = DistributedDC.createInstance(options, factory, tree);
+    distributed.start();
+    Assert.assertTrue(distributed.memoryBudget.nDelayed() > 0);
+    final LocalDC<Integer, Node> local = new LocalDC<>(options, factory, tree);
+    local.start();
+    DCRecursionTest.assertIdentical(local.getRootPopulation(), distributed.getRootPopulation());
+  }
+  
+  @Test
+  public void testMemoryBudgetBoundsSubtreePopulations()
+  {
+    // three leaves before a deep subtree: computed in tree order, the leaves' populations would be held 
+    // while the whole subtree is computed
+    final Node root = new Node(Collections.singletonList("0"));
+    final DirectedTree<Node> tree = new DirectedTree<Node>(root);
+    for (int i = 0; i < 3; i++)
+      tree.addChild(root, root.child("leaf" + i));
+    final Node heavy = root.child("heavy");
+    tree.addChild(root, heavy);
+    TestUtilities.buildTree(tree, heavy, 3);
+    final DCProposalFactory<Integer, Node> factory = Doc.markovChainNaiveProposalFactory(Doc.transition, Doc.prior);
+    final Set<Node> held = new HashSet<>();
+    final AtomicInteger peak = new AtomicInteger();
+    DCOptions options = new DCOptions();
+    options.nParticles = 1_000;
+    options.maximumDistributionDepth = 0; // the whole tree is computed serially by one task
+    options.memoryBudgetMB = 1_000;
+    
+    final DistributedDC<Integer, Node> distributed = DistributedDC.createInstance(options, 
+        (random, node, children) -> 
+        {
+          synchronized (held)
+          {
+            // the populations of the children and of the node are held while it is computed
+            peak.set(Math.max(peak.get(), held.size() + 1));
+            held.removeAll(children);
+            held.add(node);
+          }
+          return factory.build(random, node, children);
+        }, tree);
+    distributed.start();
+    Assert.assertEquals(5, distributed.memoryBudget.peakPopulations(root)); // vs 8 in tree order
+    Assert.assertEquals(5, peak.get());
+  }
+  
+  @Test
+  public void testMetrics() throws Exception
+  {
+    final DirectedTree<Node> tree = perfectBinaryTree(4);
+    final DCProposalFactory<Integer, Node> factory = Doc.markovChainNaiveProposalFactory(Doc.transition, Doc.prior);
+    DCOptions options = new DCOptions();
+    options.nThreadsPerNode = 2;
+    options.nParticles = 5_000;
+    options.metricsIntervalSeconds = 0;
+    
+    final DistributedDC<Integer, Node> distributed = DistributedDC.createInstance(options, factory, tree);
+    final List<DCMetrics.Snapshot> reported = new ArrayList<>();
+    final List<Object> tasksDoneOverJmx = new ArrayList<>();
+    distributed.addProgressListener((member, cluster) -> 
+    {
+      reported.add(cluster);
+      try
+      {
+        tasksDoneOverJmx.add(ManagementFactory.getPlatformMBeanServer().getAttribute(
+            new ObjectName("dc:type=DistributedDC,run=" + ObjectName.quote(distributed.runId)), "TasksDone"));
+      }
+      catch (JMException e)
+      {
+        throw new RuntimeException(e);
+      }
+    });
+    distributed.start();
+    
+    Assert.assertEquals(1, reported.size()); // at the end only
+    final DCMetrics.Snapshot cluster = reported.get(0);
+    final int nNodes = tree.getNodes().size();
+    Assert.assertEquals(nNodes, cluster.nNodesDone);
+    Assert.assertEquals(nNodes * options.nParticles, cluster.nParticlesProposed);
+    Assert.assertEquals(nNodes, cluster.nTasksSubmitted);
+    Assert.assertTrue(cluster.nTasksDone >= nNodes - 1); // the root task may still be completing
+    Assert.assertEquals(nNodes - 1, cluster.decrementMicros.count());
+    Assert.assertTrue(cluster.nSerializedBytes > 0);
+    Assert.assertEquals(cluster.storeMicros.count() + cluster.fetchMicros.count(), cluster.serializeMicros.count());
+    Assert.assertEquals(0, cluster.estimatedMillisToCompletion());
+    Assert.assertEquals(1, tasksDoneOverJmx.size());
+    Assert.assertTrue((Long) tasksDoneOverJmx.get(0) >= nNodes - 1);
+  }
+  
+  /**
+   * The model of Doc, with the observed state of each leaf given by a map which can change between runs.
+   */
+  private static final class ObservedLeavesFactory implements DCProposalFactory<Integer, Node>
+  {
+    private final DCProposalFactory<Integer, Node> factory = Doc.markovChainNaiveProposalFactory(Doc.transition, Doc.prior);
+    private final transient Map<Node, Integer> observations = new HashMap<>(); // transient: the data is not part of the run key
+    
+    ObservedLeavesFactory(DirectedTree<Node> tree)
+    {
+      for (Node node : tree.getNodes())
+        if (tree.isLeaf(node))
+          observations.put(node, 0);
+    }
+
+    @Override
+    public DCProposal<Integer> build(Random random, Node currentNode, List<Node> childrenNodes)
+    {
+      if (!childrenNodes.isEmpty())
+        return factory.build(random, currentNode, childrenNodes);
+      final int state = observations.get(currentNode);
+      return (rand, children) -> Pair.of(Math.log(Doc.prior.get(state, 0)), state);
+    }
+    
+    @Override
+    public long dataHash(Node node)
+    {
+      return observations.getOrDefault(node, 0);
+    }
+  }
+  
+  private static final class CountingFactory implements DCProposalFactory<Integer, Node>
+  {
+    private final DCProposalFactory<Integer, Node> factory;
+    private final AtomicInteger nBuilt = new AtomicInteger();
+    
+    CountingFactory(DCProposalFactory<Integer, Node> factory)
+    {
+      this.factory = factory;
+    }
+
+    @Override
+    public DCProposal<Integer> build(Random random, Node currentNode, List<Node> childrenNodes)
+    {
+      nBuilt.incrementAndGet();
+      return factory.build(random, currentNode, childrenNodes);
+    }
+    
+    @Override
+    public long dataHash(Node node)
+    {
+      return factory.dataHash(node);
+    }
+  }
+  
+  private static void checkSerialization(DCOptions options)
+  {
+    final DirectedTree<Node> tree = perfectBinaryTree(4);
+    final DCProposalFactory<Integer, Node> factory = Doc.markovChainNaiveProposalFactory(Doc.transition, Doc.prior);
+    
+    final DistributedDC<Integer, Node> distributed = DistributedDC.createInstance(options, factory, tree);
+    distributed.start();
+    final LocalDC<Integer, Node> local = new LocalDC<>(options, factory, tree);
+    local.start();
+    
+    Assert.assertEquals(local.getRootPopulation().particles, distributed.getRootPopulation().particles);
+    Assert.assertEquals(local.getRootPopulation().logNormEstimate(), distributed.getRootPopulation().logNormEstimate(), 1e-10);
+  }
+}
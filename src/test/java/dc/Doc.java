@@ -195,7 +195,48 @@ public class Doc
       }
     };
   }
-  
+
+  /**
+   * The same proposal, also implementing ``dc.DCBatchProposal``, so that DCRecursion proposes a whole range of
+   * particles in one call, without allocating a list of children and a Pair for each particle.
+   * Given the same random object, both versions propose the same particles.
+   */
+  @Tutorial(showSource = true, showSignature = true)
+  public static DCProposal<Integer> markovChainNaiveBatchProposal(Matrix transition, Matrix prior)
+  {
+    final int nStates = transition.nRows();
+    final DCProposal<Integer> single = markovChainNaiveProposal(transition, prior);
+    class BatchProposal implements DCProposal<Integer>, DCBatchProposal<Integer>
+    {
+      @Override
+      public Pair<Double, Integer> propose(Random random, List<Integer> childrenParticles)
+      {
+        return single.propose(random, childrenParticles);
+      }
+
+      @Override
+      public void propose(Random random, List<List<Integer>> childrenParticles, int start, int end,
+          double [] logWeightUpdates, List<Integer> proposed)
+      {
+        for (int particleIndex = start; particleIndex < end; particleIndex++)
+        {
+          CounterRandom.seek(random, particleIndex); // one stream per particle when DCOptions.counterBasedRandom is set
+          final int proposal = random.nextInt(nStates);
+          double weightUpdate = nStates;
+          weightUpdate *= prior.get(proposal, 0);
+          for (List<Integer> childParticles : childrenParticles)
+          {
+            weightUpdate *= transition.get(proposal, childParticles.get(particleIndex));
+            weightUpdate /= prior.get(proposal, 0);
+          }
+          logWeightUpdates[particleIndex] = Math.log(weightUpdate);
+          proposed.set(particleIndex, proposal);
+        }
+      }
+    }
+    return new BatchProposal();
+  }
+
   /**
    * After building a DCProposal, we also need a DCProposalFactory, which instantiate one proposal for each 
    * node of the tree and each thread and node. 
@@ -0,0 +1,61 @@
+package dc;
+
+import static dc.TestUtilities.perfectBinaryTree;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import prototype.Node;
+import bayonet.graphs.DirectedTree;
+import bayonet.smc.ParticlePopulation;
+import briefj.BriefIO;
+
+
+
+public class LocalDCTest
+{
+  @Test
+  public void testLocalMatchesDistributed()
+  {
+    DCOptions options = new DCOptions();
+    options.nThreadsPerNode = 4;
+    options.nParticles = 10_000;
+    options.relativeEssThreshold = 0.5;
+    options.proposalBlockSize = 1_000;
+    options.nProposalThreads = 2;
+    
+    final DirectedTree<Node> tree = perfectBinaryTree(4);
+    final DCProposalFactory<Integer, Node> factory = Doc.markovChainNaiveProposalFactory(Doc.transition, Doc.prior);
+    
+    final LocalDC<Integer, Node> local = new LocalDC<>(options, factory, tree);
+    local.start();
+    
+    final DistributedDC<Integer, Node> distributed = DistributedDC.createInstance(options, factory, tree);
+    distributed.start();
+    
+    final ParticlePopulation<Integer> root = local.getRootPopulation();
+    DCRecursionTest.assertIdentical(distributed.getRootPopulation(), root);
+  }
+  
+  @Test
+  public void testRunsWriteToTheirOwnFolders()
+  {
+    DCOptions options = new DCOptions();
+    options.nParticles = 1_000;
+    final DirectedTree<Node> tree = perfectBinaryTree(2);
+    final DCProposalFactory<Integer, Node> factory = Doc.markovChainNaiveProposalFactory(Doc.transition, Doc.prior);
+    
+    final LocalDC<Integer, Node> first = new LocalDC<>(options, factory, tree);
+    final LocalDC<Integer, Node> second = new LocalDC<>(options, factory, tree);
+    first.start();
+    second.start();
+    
+    Assert.assertNotEquals(first.outputFolder(), second.outputFolder());
+    for (LocalDC<Integer, Node> dc : Arrays.asList(first, second))
+      Assert.assertEquals(dc.getRootPopulation().logNormEstimate(), 
+          Double.parseDouble(BriefIO.fileToString(new File(dc.outputFolder(), "logZ")).trim()), 0.0);
+  }
+}
@@ -0,0 +1,118 @@
+package dc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import prototype.Node;
+import prototype.adaptor.MultiLevelSerializers;
+import prototype.smc.BrownianModelCalculator;
+import prototype.smc.DivideConquerMCAlgorithm.Particle;
+import bayonet.smc.ParticlePopulation;
+import bayonet.smc.ResamplingScheme;
+
+import com.hazelcast.config.SerializationConfig;
+import com.hazelcast.config.SerializerConfig;
+import com.hazelcast.nio.serialization.DefaultSerializationServiceBuilder;
+import com.hazelcast.nio.serialization.SerializationService;
+
+
+
+public class PopulationSerializerTest
+{
+  @Test
+  public void testMultiLevelPopulation()
+  {
+    final ParticlePopulation<Particle> population = multiLevelPopulation(new Random(1), 1_000, 10, 50);
+    final ParticlePopulation<Particle> read = roundTrip(population);
+    
+    Assert.assertEquals(population.logScaling, read.logScaling, 1e-10);
+    for (int i = 0; i < population.nParticles(); i++)
+    {
+      final Particle expected = population.particles.get(i), actual = read.particles.get(i);
+      Assert.assertEquals(expected.node, actual.node);
+      Assert.assertEquals(expected.childrenNodes, actual.childrenNodes);
+      Assert.assertEquals(expected.logDensity(), actual.logDensity(), 0.0);
+      Assert.assertEquals(population.getNormalizedWeight(i), read.getNormalizedWeight(i), 0.0);
+      for (int j = 0; j < i; j++) // duplicates still shared
+        Assert.assertEquals(population.particles.get(j) == expected, read.particles.get(j) == actual);
+    }
+    
+    final int defaultSize = serializationService(false).toData(population).totalSize();
+    final int compactSize = serializationService(true).toData(population).totalSize();
+    Assert.assertTrue(compactSize * 2 < defaultSize);
+  }
+  
+  @Test
+  public void testWeightedPopulation()
+  {
+    final Random random = new Random(1);
+    final double [] logWeights = new double[1000];
+    final List<Integer> particles = new ArrayList<>();
+    for (int i = 0; i < logWeights.length; i++)
+    {
+      logWeights[i] = random.nextGaussian();
+      particles.add(random.nextInt(10));
+    }
+    final ParticlePopulation<Integer> population = ParticlePopulation.buildDestructivelyFromLogWeights(logWeights, particles, 0.0);
+    final ParticlePopulation<Integer> read = roundTrip(population);
+    Assert.assertEquals(population.particles, read.particles);
+    Assert.assertEquals(population.logScaling, read.logScaling, 1e-10);
+    for (int i = 0; i < population.nParticles(); i++)
+      Assert.assertEquals(population.getNormalizedWeight(i), read.getNormalizedWeight(i), 1e-15);
+  }
+  
+  private static <P> ParticlePopulation<P> roundTrip(ParticlePopulation<P> population)
+  {
+    final SerializationService service = serializationService(true);
+    return service.toObject(service.toData(population));
+  }
+  
+  private static SerializationService serializationService(boolean compact)
+  {
+    final SerializationConfig config = new SerializationConfig();
+    if (compact)
+    {
+      config.addSerializerConfig(new SerializerConfig().setTypeClass(ParticlePopulation.class).setImplementation(new PopulationSerializer()));
+      config.addSerializerConfig(new SerializerConfig().setTypeClass(Node.class).setImplementation(new MultiLevelSerializers.NodeSerializer()));
+      config.addSerializerConfig(new SerializerConfig().setTypeClass(Particle.class).setImplementation(new MultiLevelSerializers.ParticleSerializer()));
+      config.addSerializerConfig(new SerializerConfig().setTypeClass(BrownianModelCalculator.class).setImplementation(new BrownianModelCalculator.Serializer()));
+    }
+    return new DefaultSerializationServiceBuilder().setConfig(config).build();
+  }
+  
+  /**
+   * A resampled population of internal node particles, each with nChildren leaf children.
+   */
+  static ParticlePopulation<Particle> multiLevelPopulation(Random random, int nParticles, int nChildren, int nSites)
+  {
+    final Node node = Node.root("root");
+    final List<Node> childrenNodes = new ArrayList<>();
+    for (int c = 0; c < nChildren; c++)
+      childrenNodes.add(node.child("" + c));
+    final List<Particle> proposed = new ArrayList<>();
+    for (int i = 0; i < nParticles; i++)
+    {
+      final List<BrownianModelCalculator> childrenMessages = new ArrayList<>();
+      for (int c = 0; c < nChildren; c++)
+      {
+        final double [] observation = new double[nSites];
+        for (int s = 0; s < nSites; s++)
+          observation[s] = random.nextDouble();
+        childrenMessages.add(BrownianModelCalculator.observation(observation, nSites, false));
+      }
+      final double variance = random.nextDouble();
+      proposed.add(new Particle(
+          BrownianModelCalculator.combine(childrenMessages, variance), variance, childrenMessages, 
+          node, childrenNodes, random.nextGaussian(), random.nextGaussian()));
+    }
+    final double [] logWeights = new double[nParticles];
+    for (int i = 0; i < nParticles; i++)
+      logWeights[i] = proposed.get(i).logDensity();
+    final ParticlePopulation<Particle> population = ParticlePopulation.buildDestructivelyFromLogWeights(logWeights, proposed, 0.0);
+    return Resampling.resample(random, ResamplingScheme.MULTINOMIAL, population, nParticles);
+  }
+}
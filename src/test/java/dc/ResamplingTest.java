@@ -0,0 +1,94 @@
+package dc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import bayonet.smc.ParticlePopulation;
+import bayonet.smc.ResamplingScheme;
+
+
+
+public class ResamplingTest
+{
+  @Test
+  public void testResampledViewSharesParticles() throws Exception
+  {
+    final Random random = new Random(1);
+    final int nParticles = 1000;
+    final List<StringBuilder> particles = new ArrayList<>();
+    final double [] logWeights = new double[nParticles];
+    for (int i = 0; i < nParticles; i++)
+    {
+      particles.add(new StringBuilder("" + i));
+      logWeights[i] = 10.0 * random.nextGaussian();
+    }
+    final ParticlePopulation<StringBuilder> population = ParticlePopulation.buildDestructivelyFromLogWeights(logWeights, particles, 0.0);
+    
+    final ParticlePopulation<StringBuilder> resampled = Resampling.resample(random, ResamplingScheme.MULTINOMIAL, population, nParticles);
+    final ParticlePopulation<StringBuilder> twice = Resampling.resample(random, ResamplingScheme.STRATIFIED, resampled, nParticles / 2);
+    Assert.assertEquals(population.logNormEstimate(), twice.logNormEstimate(), 1e-10);
+    Assert.assertTrue(((IndexedList<StringBuilder>) twice.particles).base == particles); // views are not nested
+    
+    // only the survivors are serialized, and duplicates are still shared after deserialization
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) { out.writeObject(resampled.particles); }
+    @SuppressWarnings("unchecked")
+    final IndexedList<StringBuilder> read = (IndexedList<StringBuilder>) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+    Assert.assertTrue(read.base.size() < nParticles);
+    for (int i = 0; i < nParticles; i++)
+    {
+      Assert.assertEquals(resampled.particles.get(i).toString(), read.get(i).toString());
+      for (int j = 0; j < i; j++)
+        Assert.assertEquals(resampled.particles.get(i) == resampled.particles.get(j), read.get(i) == read.get(j));
+    }
+  }
+  
+  @Test
+  public void testParallelSchemesDoNotDependOnThreads()
+  {
+    final Random random = new Random(1);
+    final int nWeights = 100_000, nParticles = 3 * Resampling.SEGMENT_SIZE + 17;
+    final double [] weights = new double[nWeights];
+    double sum = 0.0;
+    for (int i = 0; i < nWeights; i++)
+      sum += (weights[i] = (i % 7 == 0 ? 0.0 : Math.exp(2.0 * random.nextGaussian())));
+    for (int i = 0; i < nWeights; i++)
+      weights[i] /= sum;
+    
+    final ForkJoinPool pool = new ForkJoinPool(4);
+    for (ParallelResamplingScheme scheme : ParallelResamplingScheme.values())
+    {
+      final int [] serial = Resampling.ancestors(new Random(2), scheme, i -> weights[i], nWeights, nParticles, null);
+      final int [] parallel = Resampling.ancestors(new Random(2), scheme, i -> weights[i], nWeights, nParticles, pool);
+      Assert.assertArrayEquals(serial, parallel);
+      
+      final int [] counts = new int[nWeights];
+      for (int k = 0; k < nParticles; k++)
+      {
+        Assert.assertTrue(k == 0 || serial[k - 1] <= serial[k]);
+        counts[serial[k]]++;
+      }
+      for (int i = 0; i < nWeights; i++)
+      {
+        if (weights[i] == 0.0)
+          Assert.assertEquals(0, counts[i]);
+        if (scheme == ParallelResamplingScheme.SYSTEMATIC)
+          Assert.assertTrue(Math.abs(counts[i] - nParticles * weights[i]) < 1.0 + 1e-6);
+        if (scheme == ParallelResamplingScheme.STRATIFIED)
+          Assert.assertTrue(Math.abs(counts[i] - nParticles * weights[i]) < 2.0 + 1e-6);
+        if (scheme == ParallelResamplingScheme.RESIDUAL)
+          Assert.assertTrue(counts[i] >= (int) Math.floor(nParticles * weights[i]));
+      }
+    }
+    pool.shutdown();
+  }
+}
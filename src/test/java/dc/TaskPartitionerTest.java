@@ -0,0 +1,78 @@
+package dc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import prototype.Node;
+import bayonet.graphs.DirectedTree;
+
+
+
+public class TaskPartitionerTest
+{
+  @Test
+  public void testUnbalancedTree()
+  {
+    final DirectedTree<Node> tree = unbalancedTree();
+    final TaskPartitioner<Node> partitioner = new TaskPartitioner<>(tree, TaskPartitioner.modelCosts(tree, 1000), 8);
+    
+    // the root and the root of the deep subtree are split, the leaves are grouped
+    final Node root = tree.getRoot();
+    final Node deep = root.child("deep");
+    Assert.assertFalse(partitioner.isTaskRoot(root));
+    Assert.assertFalse(partitioner.isTaskRoot(deep));
+    final List<Node> leaves = new ArrayList<>();
+    for (Node child : tree.getChildren(root))
+      if (tree.isLeaf(child))
+        leaves.add(child);
+    final List<List<Node>> groups = partitioner.group(leaves);
+    Assert.assertTrue(groups.size() > 1);
+    Assert.assertTrue(groups.size() < leaves.size() / 4);
+    
+    final Set<Node> grouped = new HashSet<>();
+    for (List<Node> group : groups)
+      grouped.addAll(group);
+    Assert.assertEquals(new HashSet<>(leaves), grouped);
+  }
+  
+  @Test
+  public void testCostBasedPartitioningMatchesLocal()
+  {
+    final DirectedTree<Node> tree = unbalancedTree();
+    final DCProposalFactory<Integer, Node> factory = Doc.markovChainNaiveProposalFactory(Doc.transition, Doc.prior);
+    for (int pilotNParticles : new int[]{0, 100})
+    {
+      DCOptions options = new DCOptions();
+      options.nThreadsPerNode = 2;
+      options.costBasedPartitioning = true;
+      options.pilotNParticles = pilotNParticles;
+      
+      final DistributedDC<Integer, Node> distributed = DistributedDC.createInstance(options, factory, tree);
+      distributed.start();
+      final LocalDC<Integer, Node> local = new LocalDC<>(options, factory, tree);
+      local.start();
+      DCRecursionTest.assertIdentical(local.getRootPopulation(), distributed.getRootPopulation());
+    }
+  }
+
+  /**
+   * A root with a perfect binary subtree of depth 5 and 100 leaves as children.
+   */
+  private static DirectedTree<Node> unbalancedTree()
+  {
+    final Node root = new Node(Collections.singletonList("0"));
+    final DirectedTree<Node> result = new DirectedTree<Node>(root);
+    final Node deep = root.child("deep");
+    result.addChild(root, deep);
+    TestUtilities.buildTree(result, deep, 5);
+    for (int i = 0; i < 100; i++)
+      result.addChild(root, root.child("" + i));
+    return result;
+  }
+}